@@ -0,0 +1,25 @@
+package com.manywords.softworks.morse;
+
+import org.openjdk.jmh.Main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The benchmark jar's entry point: JMH's own command line, except that results are saved as
+ * JSON, to jmh-result.json in the working directory, unless another format is given with -rf.
+ */
+public class MorseBenchmarks {
+    public static void main(String[] args) throws Exception {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+
+        boolean formatGiven = false;
+        for(String argument : arguments) {
+            if(argument.startsWith("-rf") && !argument.startsWith("-rff")) formatGiven = true;
+        }
+        if(!formatGiven) arguments.addAll(0, Arrays.asList("-rf", "json"));
+
+        Main.main(arguments.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,57 @@
+package com.manywords.softworks.morse;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end decoding of about 1000 characters of generated traffic, replayed through a key on
+ * a virtual clock, at several speeds and levels of variability. The variation is seeded, so
+ * every run decodes the same signal.
+ * <br /><br />
+ * The setup decodes the signal once and fails unless it gets the text back exactly, so that
+ * every timing is of a correct decode. Variability is kept to levels the decoder copies
+ * perfectly at every speed here; much beyond them, the fastest speeds start losing word spaces.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MorseDecodeBenchmark {
+    @Param({"5", "13", "20", "30"})
+    public double wpm;
+
+    @Param({"0", "0.04"})
+    public double variability;
+
+    private List<MorseSignal> mSignal;
+    private MorseDecoder mDecoder;
+
+    @Setup
+    public void setup() {
+        String text = MorseTraffic.generate(1000, 2);
+        mSignal = new MorseProfile(wpm, variability).withSeed(3).generateSignal(text);
+
+        // The default limits would hold the slowest and fastest speeds here at 7.5 and 25 wpm
+        mDecoder = new MorseDecoder();
+        mDecoder.setSpeed(new MorseSpeed.Group(MorseSpeed.getSpeedForWPM(wpm)));
+        mDecoder.setSpeedCeiling(new MorseSpeed.Group(MorseSpeed.getSpeedForWPM(wpm * 1.5)));
+        mDecoder.setSpeedFloor(new MorseSpeed.Group(MorseSpeed.getSpeedForWPM(wpm / 1.5)));
+
+        StringBuilder decoded = new StringBuilder();
+        for(MorseCharacter c : mDecoder.decode(mSignal)) {
+            decoded.append(c.character != null ? c.character : "<" + c.prosign + ">");
+        }
+        if(!decoded.toString().trim().equals(text)) {
+            throw new IllegalStateException("Decoded " + wpm + " wpm at variability " + variability + " as: " + decoded);
+        }
+    }
+
+    @Benchmark
+    public List<MorseCharacter> decode() {
+        return mDecoder.decode(mSignal);
+    }
+}
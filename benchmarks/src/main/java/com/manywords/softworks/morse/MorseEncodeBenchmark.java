@@ -0,0 +1,45 @@
+package com.manywords.softworks.morse;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bulk encoding of about 4000 characters of traffic into signal, collected into a list and
+ * streamed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MorseEncodeBenchmark {
+    @Param({"0", "0.1"})
+    public double variability;
+
+    private String mText;
+    private MorseProfile mProfile;
+
+    @Setup
+    public void setup() {
+        mText = MorseTraffic.generate(4000, 1);
+        mProfile = new MorseProfile(20, variability);
+    }
+
+    @Benchmark
+    public List<MorseSignal> generateSignal() {
+        return mProfile.generateSignal(mText);
+    }
+
+    @Benchmark
+    public void signalIterator(Blackhole blackhole) {
+        Iterator<MorseSignal> signal = mProfile.signalIterator(mText);
+        while(signal.hasNext()) {
+            blackhole.consume(signal.next());
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.manywords.softworks.morse;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fallback decoding of short groups sent between 10 and 30 wpm, with up to 20% timing jitter,
+ * to a key expecting 15 wpm.
+ * <br /><br />
+ * With few distinct groups, every shape soon sits in the fallback decoder's cache; with many,
+ * nearly every decode misses and clusters from scratch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MorseFallbackBenchmark {
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+
+    @Param({"16", "4096"})
+    public int groups;
+
+    private MorseSignalBuffer[] mSignals;
+    private MorseFallbackDecoder mDecoder;
+    private MorseStats mStats;
+    private final MorseSpeed mSpeed = MorseSpeed.getSpeedForWPM(15);
+    private int mIndex;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        mSignals = new MorseSignalBuffer[groups];
+
+        for(int i = 0; i < groups; i++) {
+            StringBuilder group = new StringBuilder();
+            int length = 1 + random.nextInt(5);
+            for(int j = 0; j < length; j++) {
+                group.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+
+            List<MorseSignal> signal = new MorseProfile(10 + random.nextDouble() * 20).generateSignal(group);
+
+            // The trailing silence ends the group; the key would not have it
+            MorseSignalBuffer buffer = new MorseSignalBuffer();
+            for(int j = 0; j < signal.size() - 1; j++) {
+                MorseSignal s = signal.get(j);
+                double jitter = 1 + (random.nextDouble() * 2 - 1) * 0.2;
+                buffer.add(s.on, Math.max(1, Math.round(s.duration * jitter)));
+            }
+            mSignals[i] = buffer;
+        }
+
+        mDecoder = new MorseFallbackDecoder();
+        mStats = new MorseStats();
+    }
+
+    @Benchmark
+    public List<MorseCharacter> decode() {
+        MorseSignalBuffer signal = mSignals[mIndex];
+        mIndex = (mIndex + 1) % mSignals.length;
+        return mDecoder.decode(signal, mSpeed, mStats, "", null);
+    }
+}
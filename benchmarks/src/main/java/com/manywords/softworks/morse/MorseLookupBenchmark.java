@@ -0,0 +1,44 @@
+package com.manywords.softworks.morse;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-character lookup in both directions, cycling through the alphabet so the branch
+ * predictor cannot learn one answer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MorseLookupBenchmark {
+    private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789.,?/=";
+
+    // A power of two, so the index wraps with a mask
+    private static final int SIZE = 64;
+
+    private final char[] mCharacters = new char[SIZE];
+    private final int[] mCodes = new int[SIZE];
+    private int mIndex;
+
+    @Setup
+    public void setup() {
+        for(int i = 0; i < SIZE; i++) {
+            mCharacters[i] = ALPHABET.charAt(i % ALPHABET.length());
+            mCodes[i] = MorseConstants.encode(mCharacters[i]);
+        }
+    }
+
+    @Benchmark
+    public int encode() {
+        return MorseConstants.encode(mCharacters[mIndex++ & (SIZE - 1)]);
+    }
+
+    @Benchmark
+    public MorseCharacter lookupCharacter() {
+        return MorseConstants.lookupCharacter(mCodes[mIndex++ & (SIZE - 1)]);
+    }
+}
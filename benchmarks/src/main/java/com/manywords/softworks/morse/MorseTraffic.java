@@ -0,0 +1,41 @@
+package com.manywords.softworks.morse;
+
+import java.util.Random;
+
+/**
+ * Generates plausible amateur radio traffic for benchmarks: calls, reports, and the usual
+ * abbreviations, chosen by a seeded random number generator so every run sends the same text.
+ */
+class MorseTraffic {
+    private static final String[] CALLS = {"W1AW", "K7RA", "N0AX", "VE3XYZ", "G4ABC", "JA1QRP", "DL2KW", "VK2DX"};
+    private static final String[] PHRASES = {
+            "CQ CQ CQ DE %s %s K",
+            "%s DE %s GM OM TNX FER CALL UR RST 579 579",
+            "NAME HR IS JAY QTH NR BOSTON",
+            "RIG HR IS 100W ES ANT IS DIPOLE",
+            "WX HR IS CLOUDY ES COLD TEMP 5C",
+            "HW CPY? %s DE %s KN",
+            "R R FB OM TNX FER QSO 73 ES GL",
+            "QRZ? DE %s",
+            "PSE QSL VIA BURO 73 %s DE %s SK",
+    };
+
+    /**
+     * @param length The least number of characters to generate.
+     * @param seed The seed.
+     * @return Text of at least the given length, ending at the end of a phrase.
+     */
+    static String generate(int length, long seed) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder();
+        while(text.length() < length) {
+            String phrase = PHRASES[random.nextInt(PHRASES.length)];
+            String call = CALLS[random.nextInt(CALLS.length)];
+            String other = CALLS[random.nextInt(CALLS.length)];
+
+            if(text.length() > 0) text.append(' ');
+            text.append(String.format(phrase, call, other));
+        }
+        return text.toString();
+    }
+}
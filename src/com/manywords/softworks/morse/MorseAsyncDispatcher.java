@@ -0,0 +1,220 @@
+package com.manywords.softworks.morse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A listener which hands received characters on to another listener through a bounded queue,
+ * delivering them in batches on an executor, so that a slow listener never delays decoding.
+ * <br /><br />
+ * Give a dispatcher to a {@link MorseKey} or {@link MorseDecoder} in place of the listener it
+ * wraps. Receiving a character only queues it and, if no delivery is pending, submits one to the
+ * executor; the queue is lock-free, so the key's writer never waits on the listener. A delivery
+ * hands over everything queued, in order, up to a batch at a time, and only one delivery runs at
+ * once, so the wrapped listener never runs on two threads at once.
+ * <br /><br />
+ * If the listener falls so far behind that the queue is full, characters are dropped rather
+ * than blocking the key, and counted by {@link #getDroppedCount()}. If the listener throws, the
+ * exception is passed to the delivering thread's uncaught exception handler, counted by
+ * {@link #getFailedBatchCount()}, and delivery carries on with the next batch.
+ */
+public class MorseAsyncDispatcher implements MorseListener {
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    private final MorseBatchListener mListener;
+    private final Executor mExecutor;
+    private final int mBatchSize;
+
+    private final MorseCharacter[] mCharacters;
+    private final AtomicLongArray mSequence;
+    private final int mMask;
+
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mFailedBatches = new AtomicLong();
+
+    // Only touched by the running delivery; published between deliveries by mScheduled
+    private long mHead;
+    private final ArrayList<MorseCharacter> mBatch;
+    private final List<MorseCharacter> mBatchView;
+
+    private volatile MorseMetrics mMetrics = MorseMetrics.getShared();
+
+    private final Runnable mDelivery = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    /**
+     * Deliver characters one at a time to an ordinary listener, on an executor.
+     * @param listener The listener.
+     * @param executor The executor on which to call it.
+     */
+    public MorseAsyncDispatcher(final MorseListener listener, Executor executor) {
+        this(new MorseBatchListener() {
+            @Override
+            public void morseReceived(List<MorseCharacter> characters) {
+                for(MorseCharacter c : characters) {
+                    listener.morseReceived(c);
+                }
+            }
+        }, executor, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE);
+    }
+
+    public MorseAsyncDispatcher(MorseBatchListener listener, Executor executor) {
+        this(listener, executor, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     *
+     * @param listener The listener.
+     * @param executor The executor on which to call it.
+     * @param capacity The most characters to hold for the listener, rounded up to a power of
+     *                 two.
+     * @param batchSize The most characters to hand the listener in one call.
+     */
+    public MorseAsyncDispatcher(MorseBatchListener listener, Executor executor, int capacity, int batchSize) {
+        if(batchSize < 1) throw new IllegalArgumentException("Batch size must be at least 1");
+
+        int size = Integer.highestOneBit(Math.max(2, capacity));
+        if(size < capacity) size <<= 1;
+
+        mListener = listener;
+        mExecutor = executor;
+        mBatchSize = batchSize;
+
+        mCharacters = new MorseCharacter[size];
+        mSequence = new AtomicLongArray(size);
+        mMask = size - 1;
+
+        for(int i = 0; i < size; i++) {
+            mSequence.set(i, i);
+        }
+
+        mBatch = new ArrayList<>(Math.min(batchSize, size));
+        mBatchView = Collections.unmodifiableList(mBatch);
+    }
+
+    @Override
+    public void morseReceived(MorseCharacter c) {
+        if(!offer(c)) {
+            mDropped.incrementAndGet();
+            mMetrics.charactersDropped.increment();
+        }
+
+        schedule();
+    }
+
+    /**
+     *
+     * @return The number of characters dropped because the listener had fallen behind.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     *
+     * @return The number of batches whose delivery the listener failed by throwing.
+     */
+    public long getFailedBatchCount() {
+        return mFailedBatches.get();
+    }
+
+    public MorseMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Set the registry into which dropped characters are counted. By default, the shared registry.
+     * @param metrics The registry.
+     */
+    public void setMetrics(MorseMetrics metrics) {
+        if(metrics == null) throw new IllegalArgumentException("Metrics may not be null");
+        mMetrics = metrics;
+    }
+
+    private boolean offer(MorseCharacter c) {
+        long position = mTail.get();
+        while(true) {
+            int index = (int) (position & mMask);
+            long difference = mSequence.get(index) - position;
+
+            if(difference == 0) {
+                if(mTail.compareAndSet(position, position + 1)) {
+                    mCharacters[index] = c;
+                    mSequence.set(index, position + 1);
+                    return true;
+                }
+            }
+            else if(difference < 0) {
+                // Full: the slot still holds a character from the previous lap
+                return false;
+            }
+
+            position = mTail.get();
+        }
+    }
+
+    private void schedule() {
+        if(!mScheduled.compareAndSet(false, true)) return;
+
+        try {
+            mExecutor.execute(mDelivery);
+        }
+        catch(RejectedExecutionException e) {
+            // The characters stay queued, and the next one received tries again
+            mScheduled.set(false);
+        }
+    }
+
+    private void deliver() {
+        try {
+            while(true) {
+                mBatch.clear();
+                while(mBatch.size() < mBatchSize) {
+                    int index = (int) (mHead & mMask);
+                    if(mSequence.get(index) != mHead + 1) break;
+
+                    mBatch.add(mCharacters[index]);
+                    mCharacters[index] = null;
+                    mSequence.set(index, mHead + mMask + 1);
+                    mHead++;
+                }
+
+                if(mBatch.isEmpty()) break;
+
+                try {
+                    mListener.morseReceived(mBatchView);
+                }
+                catch(RuntimeException e) {
+                    // The batch is lost, but the characters behind it are still delivered
+                    mFailedBatches.incrementAndGet();
+                    Thread current = Thread.currentThread();
+                    current.getUncaughtExceptionHandler().uncaughtException(current, e);
+                }
+            }
+        }
+        finally {
+            mBatch.clear();
+
+            // Once we let go, the next delivery owns mHead, so read it first
+            long head = mHead;
+            mScheduled.set(false);
+
+            // A character may have been queued after we stopped looking, and found us still
+            // scheduled.
+            if(mSequence.get((int) (head & mMask)) == head + 1) schedule();
+        }
+    }
+}
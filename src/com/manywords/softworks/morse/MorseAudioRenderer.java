@@ -0,0 +1,285 @@
+package com.manywords.softworks.morse;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Renders Morse signals, such as those generated by a {@link MorseProfile}, as 16-bit signed
+ * little-endian mono PCM audio.
+ * <br /><br />
+ * Marks are a sine tone with raised-cosine ramps at each end to avoid key clicks. The tone and
+ * ramps come from tables computed when the renderer is created, so rendering costs a few integer
+ * operations per sample and runs far faster than real time, with no audio device required.
+ * <br /><br />
+ * Renderers are immutable and may be shared between threads; each {@link Stream} they create
+ * may only be used by one thread at a time.
+ */
+public class MorseAudioRenderer {
+    public static final float DEFAULT_SAMPLE_RATE = 22050f;
+    public static final double DEFAULT_TONE_HZ = 700;
+    public static final double DEFAULT_RAMP_MSEC = 5;
+    public static final double DEFAULT_AMPLITUDE = 0.5;
+
+    // The sine table covers one period; the top bits of a 32-bit phase index it
+    private static final int SINE_BITS = 12;
+    private static final int SINE_SHIFT = 32 - SINE_BITS;
+
+    // Ramp gains are fixed-point, with 1.0 = 1 << GAIN_BITS
+    private static final int GAIN_BITS = 15;
+
+    private final float mSampleRate;
+    private final double mToneHz;
+    private final short[] mSine;
+    private final int[] mRamp;
+    private final int mPhaseIncrement;
+
+    /**
+     * Create a renderer with a 700 Hz tone at 22050 samples per second.
+     */
+    public MorseAudioRenderer() {
+        this(DEFAULT_SAMPLE_RATE, DEFAULT_TONE_HZ);
+    }
+
+    /**
+     * Create a renderer with 5ms ramps at half of full scale.
+     * @param sampleRate The sample rate in samples per second.
+     * @param toneHz The tone frequency in Hz.
+     */
+    public MorseAudioRenderer(float sampleRate, double toneHz) {
+        this(sampleRate, toneHz, DEFAULT_RAMP_MSEC, DEFAULT_AMPLITUDE);
+    }
+
+    /**
+     *
+     * @param sampleRate The sample rate in samples per second.
+     * @param toneHz The tone frequency in Hz, below half the sample rate.
+     * @param rampMsec The length of the rise and fall of each mark in milliseconds.
+     * @param amplitude The peak amplitude of the tone, between 0 and 1.
+     */
+    public MorseAudioRenderer(float sampleRate, double toneHz, double rampMsec, double amplitude) {
+        if(sampleRate <= 0) throw new IllegalArgumentException("Sample rate must be positive");
+        if(toneHz <= 0 || toneHz >= sampleRate / 2) throw new IllegalArgumentException("Tone must be between 0 and half the sample rate");
+        if(amplitude < 0 || amplitude > 1) throw new IllegalArgumentException("Amplitude must be between 0 and 1");
+
+        mSampleRate = sampleRate;
+        mToneHz = toneHz;
+
+        mSine = new short[1 << SINE_BITS];
+        for(int i = 0; i < mSine.length; i++) {
+            mSine[i] = (short) Math.round(Math.sin(2 * Math.PI * i / mSine.length) * amplitude * Short.MAX_VALUE);
+        }
+
+        int rampSamples = Math.max(1, (int) Math.round(rampMsec * sampleRate / 1000));
+        mRamp = new int[rampSamples];
+        for(int i = 0; i < rampSamples; i++) {
+            double gain = 0.5 - 0.5 * Math.cos(Math.PI * (i + 0.5) / rampSamples);
+            mRamp[i] = (int) Math.round(gain * (1 << GAIN_BITS));
+        }
+
+        mPhaseIncrement = (int) Math.round(toneHz / sampleRate * 4294967296d);
+    }
+
+    /**
+     *
+     * @return The format of the rendered audio.
+     */
+    public AudioFormat getFormat() {
+        return new AudioFormat(mSampleRate, 16, 1, true, false);
+    }
+
+    public float getSampleRate() {
+        return mSampleRate;
+    }
+
+    public double getToneHz() {
+        return mToneHz;
+    }
+
+    /**
+     * Render a complete signal.
+     * @param signal The signal to render.
+     * @return A buffer holding the rendered audio, ready to be read.
+     */
+    public ByteBuffer render(List<MorseSignal> signal) {
+        long bytes = countSamples(signal) * 2;
+        if(bytes > Integer.MAX_VALUE) throw new IllegalArgumentException("Signal is too long to render into one buffer");
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) bytes);
+        newStream(signal.iterator()).read(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Create a stream which renders a signal into buffers supplied by the caller, as the signal
+     * is consumed.
+     * @param signal The signal to render.
+     * @return The stream.
+     */
+    public Stream newStream(Iterator<MorseSignal> signal) {
+        return new Stream(signal);
+    }
+
+    /**
+     * Render a signal as an audio stream of unknown length, as the signal is consumed.
+     * @param signal The signal to render.
+     * @return The audio stream.
+     */
+    public AudioInputStream getAudioInputStream(Iterator<MorseSignal> signal) {
+        return new AudioInputStream(new StreamInputStream(newStream(signal)), getFormat(), AudioSystem.NOT_SPECIFIED);
+    }
+
+    /**
+     * Render a complete signal as an audio stream.
+     * @param signal The signal to render.
+     * @return The audio stream.
+     */
+    public AudioInputStream getAudioInputStream(List<MorseSignal> signal) {
+        return new AudioInputStream(new StreamInputStream(newStream(signal.iterator())), getFormat(), countSamples(signal));
+    }
+
+    private long countSamples(List<MorseSignal> signal) {
+        long elapsed = 0;
+        for(MorseSignal s : signal) {
+            elapsed += s.duration;
+        }
+        return toSamples(elapsed);
+    }
+
+    private long toSamples(long msec) {
+        return Math.round(msec * (double) mSampleRate / 1000);
+    }
+
+    /**
+     * Renders a signal into caller-supplied buffers, one buffer at a time. Element boundaries
+     * are placed by total elapsed time, so rounding to whole samples never accumulates.
+     */
+    public class Stream {
+        private final Iterator<MorseSignal> mSignal;
+
+        private boolean mOn;
+        private long mElapsedMsec;
+        private long mElementEnd;
+        private int mLength;
+        private int mPosition;
+        private int mPhase;
+
+        private Stream(Iterator<MorseSignal> signal) {
+            mSignal = signal;
+        }
+
+        /**
+         * Render as many whole samples as fit into the buffer.
+         * @param out The buffer to fill, from its position.
+         * @return The number of bytes written, or -1 if the signal has ended.
+         */
+        public int read(ByteBuffer out) {
+            int written = 0;
+
+            while(out.remaining() >= 2) {
+                if(mPosition == mLength && !nextElement()) {
+                    return written > 0 ? written : -1;
+                }
+
+                int count = Math.min(mLength - mPosition, out.remaining() / 2);
+                if(mOn) {
+                    renderTone(out, count);
+                }
+                else {
+                    for(int i = 0; i < count; i++) {
+                        out.put((byte) 0).put((byte) 0);
+                    }
+                }
+
+                mPosition += count;
+                written += count * 2;
+            }
+
+            return written;
+        }
+
+        private boolean nextElement() {
+            // Skip any elements too short to take up a sample
+            while(mSignal.hasNext()) {
+                MorseSignal s = mSignal.next();
+
+                long start = mElementEnd;
+                mElapsedMsec += s.duration;
+                mElementEnd = toSamples(mElapsedMsec);
+
+                mOn = s.on;
+                mLength = (int) (mElementEnd - start);
+                mPosition = 0;
+
+                if(mLength > 0) return true;
+            }
+            return false;
+        }
+
+        private void renderTone(ByteBuffer out, int count) {
+            // Short marks get shorter ramps, so they still reach full volume in the middle
+            int ramp = Math.min(mRamp.length, mLength / 2);
+            int end = mPosition + count;
+
+            for(int i = mPosition; i < end; i++) {
+                int sample = mSine[mPhase >>> SINE_SHIFT];
+                mPhase += mPhaseIncrement;
+
+                if(i < ramp) {
+                    sample = (sample * mRamp[i * mRamp.length / ramp]) >> GAIN_BITS;
+                }
+                else if(i >= mLength - ramp) {
+                    sample = (sample * mRamp[(mLength - 1 - i) * mRamp.length / ramp]) >> GAIN_BITS;
+                }
+
+                out.put((byte) sample).put((byte) (sample >> 8));
+            }
+        }
+    }
+
+    private static class StreamInputStream extends InputStream {
+        private final Stream mStream;
+        private final byte[] mSingle = new byte[2];
+        private int mSingleRemaining;
+
+        StreamInputStream(Stream stream) {
+            mStream = stream;
+        }
+
+        @Override
+        public int read() {
+            if(mSingleRemaining == 0) {
+                if(mStream.read(ByteBuffer.wrap(mSingle)) < 0) return -1;
+                mSingleRemaining = 2;
+            }
+
+            return mSingle[2 - mSingleRemaining--] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if(len == 0) return 0;
+
+            // Finish any sample half-read through read()
+            int written = 0;
+            while(mSingleRemaining > 0 && written < len) {
+                b[off + written++] = (byte) read();
+            }
+
+            int result = mStream.read(ByteBuffer.wrap(b, off + written, (len - written) & ~1));
+            if(result < 0) return written > 0 ? written : -1;
+            if(result == 0 && written == 0 && len == 1) {
+                int single = read();
+                if(single < 0) return -1;
+                b[off] = (byte) single;
+                return 1;
+            }
+            return written + result;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.manywords.softworks.morse;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Decodes many independent recordings or signal logs at once, spread across a ForkJoinPool.
+ * <br /><br />
+ * Every item is decoded by its own {@link MorseKey} on its own {@link MorseVirtualClock}, so
+ * items share no speeds, stats, or fallback decoder state, and need no locks or timer threads.
+ * Items are split between the pool's workers by work stealing, so a batch of recordings of very
+ * different lengths still keeps every core busy.
+ * <br /><br />
+ * Results stream into a {@link Sink} as they are decoded, from the pool's threads: in order for
+ * each item, but concurrently for different items. If the sink throws, the exception is passed to
+ * the pool thread's uncaught exception handler, and the item's decode carries on.
+ */
+public class MorseBatchDecoder {
+    /**
+     * A callback by which clients receive the results of a batch.
+     *
+     * @param <T> The type of item decoded.
+     */
+    public interface Sink<T> {
+        /**
+         * A character has been decoded from an item.
+         * @param item The item.
+         * @param c The decoded character.
+         */
+        void morseReceived(T item, MorseCharacter c);
+
+        /**
+         * An item has been decoded completely. No more characters will be received for it.
+         * @param item The item.
+         */
+        void decodeFinished(T item);
+
+        /**
+         * An item could not be decoded. No more characters will be received for it, but the
+         * rest of the batch continues.
+         * @param item The item.
+         * @param e The reason.
+         */
+        void decodeFailed(T item, Exception e);
+    }
+
+    private final MorseDecoder mSettings;
+    private final ForkJoinPool mPool;
+
+    /**
+     * Create a batch decoder on the common pool.
+     * @param settings A decoder whose speed settings are applied to every item.
+     */
+    public MorseBatchDecoder(MorseDecoder settings) {
+        this(settings, ForkJoinPool.commonPool());
+    }
+
+    /**
+     *
+     * @param settings A decoder whose speed settings are applied to every item. They are copied
+     *                 when each batch starts.
+     * @param pool The pool on which to decode.
+     */
+    public MorseBatchDecoder(MorseDecoder settings, ForkJoinPool pool) {
+        mSettings = settings;
+        mPool = pool;
+    }
+
+    /**
+     * Decode one tone in each of a list of recordings, returning when all are done.
+     * @param recordings The recordings.
+     * @param toneHz The frequency of the tone in Hz.
+     * @param sink The sink to receive the results.
+     */
+    public void decodeRecordings(List<MorseRecording> recordings, final double toneHz, Sink<MorseRecording> sink) {
+        mPool.invoke(new BatchTask<>(recordings, 0, recordings.size(), new MorseDecoder(mSettings), new ItemDecoder<MorseRecording>() {
+            @Override
+            public void decode(MorseDecoder decoder, MorseRecording item, MorseListener listener) throws IOException {
+                decoder.decode(item, toneHz, listener);
+            }
+        }, sink));
+    }
+
+    /**
+     * Decode each of a list of signals, returning when all are done.
+     * @param signals The signals.
+     * @param sink The sink to receive the results.
+     * @param <T> The type of signal, such as a list of MorseSignals.
+     */
+    public <T extends Iterable<MorseSignal>> void decodeSignals(List<T> signals, Sink<T> sink) {
+        mPool.invoke(new BatchTask<>(signals, 0, signals.size(), new MorseDecoder(mSettings), new ItemDecoder<T>() {
+            @Override
+            public void decode(MorseDecoder decoder, T item, MorseListener listener) {
+                decoder.decode(item.iterator(), listener);
+            }
+        }, sink));
+    }
+
+    private interface ItemDecoder<T> {
+        void decode(MorseDecoder decoder, T item, MorseListener listener) throws IOException;
+    }
+
+    /**
+     * Splits a range of items in half until one item remains, then decodes it.
+     */
+    private static class BatchTask<T> extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<T> mItems;
+        private final int mStart;
+        private final int mEnd;
+        private final MorseDecoder mDecoder;
+        private final ItemDecoder<T> mItemDecoder;
+        private final Sink<T> mSink;
+
+        BatchTask(List<T> items, int start, int end, MorseDecoder decoder, ItemDecoder<T> itemDecoder, Sink<T> sink) {
+            mItems = items;
+            mStart = start;
+            mEnd = end;
+            mDecoder = decoder;
+            mItemDecoder = itemDecoder;
+            mSink = sink;
+        }
+
+        @Override
+        protected void compute() {
+            if(mEnd - mStart > 1) {
+                int middle = (mStart + mEnd) >>> 1;
+                invokeAll(new BatchTask<>(mItems, mStart, middle, mDecoder, mItemDecoder, mSink),
+                        new BatchTask<>(mItems, middle, mEnd, mDecoder, mItemDecoder, mSink));
+                return;
+            }
+            if(mEnd == mStart) return;
+
+            final T item = mItems.get(mStart);
+            try {
+                // The decoder's settings are only read, so every task may share one copy
+                mItemDecoder.decode(mDecoder, item, new MorseListener() {
+                    @Override
+                    public void morseReceived(MorseCharacter c) {
+                        try {
+                            mSink.morseReceived(item, c);
+                        }
+                        catch(RuntimeException e) {
+                            sinkFailed(e);
+                        }
+                    }
+                });
+            }
+            catch(IOException | RuntimeException e) {
+                // Only the decoder can throw here; the sink's exceptions are caught above
+                try {
+                    mSink.decodeFailed(item, e);
+                }
+                catch(RuntimeException sinkException) {
+                    sinkFailed(sinkException);
+                }
+                return;
+            }
+
+            try {
+                mSink.decodeFinished(item);
+            }
+            catch(RuntimeException e) {
+                sinkFailed(e);
+            }
+        }
+
+        /**
+         * Report an exception thrown by the sink, without failing the item or the batch.
+         */
+        private static void sinkFailed(RuntimeException e) {
+            Thread current = Thread.currentThread();
+            current.getUncaughtExceptionHandler().uncaughtException(current, e);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.manywords.softworks.morse;
+
+import java.util.List;
+
+/**
+ * A callback by which clients receive Morse characters several at a time, from a
+ * {@link MorseAsyncDispatcher}.
+ */
+public interface MorseBatchListener {
+    /**
+     * Morse characters have been received.
+     * @param characters The received characters, oldest first. The list is reused once this
+     *                   method returns, so copy it to keep it.
+     */
+    public void morseReceived(List<MorseCharacter> characters);
+}
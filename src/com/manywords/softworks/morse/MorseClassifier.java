@@ -0,0 +1,207 @@
+package com.manywords.softworks.morse;
+
+/**
+ * Learns where the boundaries between dots and dashes, and between intra-character and
+ * inter-character silences, lie for the signal a {@link MorseKey} is receiving.
+ * <br /><br />
+ * Marks and silences are each modeled as two clusters of log-durations, updated online with the
+ * same rolling weight as {@link MorseStats}. Working in the log domain makes a cluster's spread
+ * proportional to its length, so the boundary between two clusters is their geometric mean.
+ * <br /><br />
+ * Until both clusters of a pair have seen a few elements, their centers move together at a
+ * fixed ratio, so a key started at the wrong speed finds the right one before the clusters
+ * separate. Until then, {@link #isWarm()} is false and the key uses its fixed thresholds.
+ * <br /><br />
+ * When the speed jumps, both kinds of element start landing in one cluster. A run of elements
+ * in one cluster is split in two again, and the other pair moves by the same factor; if the run
+ * really is one kind, the pair is tied until it has seen both kinds again.
+ * <br /><br />
+ * Like the key's other writer state, a classifier is only used by one thread at a time.
+ */
+class MorseClassifier {
+    private static final double ROLLING_LENGTH = 15;
+
+    // Elements each cluster must see before its boundary is trusted
+    private static final int WARM_COUNT = 4;
+
+    // Clusters closer than this ratio do not describe two kinds of element
+    private static final double MIN_RATIO = 2;
+
+    // After this many elements in a row in one cluster, check whether they are really two kinds
+    private static final int RUN_LENGTH = 8;
+
+    private final Clusters mMarks = new Clusters();
+    private final Clusters mSilences = new Clusters();
+
+    /**
+     * Forget everything learned, and start again from a speed.
+     * @param markSpeed The expected dot and intra-character silence length.
+     * @param charSpeed The expected inter-character silence length.
+     */
+    void reset(MorseSpeed markSpeed, MorseSpeed charSpeed) {
+        mMarks.reset(markSpeed.dotMsec, markSpeed.dashMsec);
+        mSilences.reset(markSpeed.dotMsec, charSpeed.dashMsec);
+    }
+
+    void addMark(long duration) {
+        double dot = mMarks.mShort;
+        if(mMarks.add(duration)) mSilences.shift(mMarks.mShort - dot);
+    }
+
+    /**
+     * Add a silence which fell inside a word: between marks, or between characters.
+     */
+    void addSilence(long duration) {
+        double dot = mSilences.mShort;
+        if(mSilences.add(duration)) mMarks.shift(mSilences.mShort - dot);
+    }
+
+    /**
+     *
+     * @return True if both the mark and the silence boundaries have been learned.
+     */
+    boolean isWarm() {
+        return mMarks.isWarm() && mSilences.isWarm();
+    }
+
+    /**
+     *
+     * @return The shortest mark, in milliseconds, which is a dash.
+     */
+    double getDashThreshold() {
+        return mMarks.mThreshold;
+    }
+
+    /**
+     *
+     * @return The shortest silence, in milliseconds, which ends a character.
+     */
+    double getCharThreshold() {
+        return mSilences.mThreshold;
+    }
+
+    /**
+     * A pair of clusters of log-durations, short and long.
+     */
+    private static class Clusters {
+        private double mShort;
+        private double mLong;
+        private double mLogRatio;
+        private int mShortSeen;
+        private int mLongSeen;
+        private int mRun;
+        private boolean mLastLong;
+        private final double[] mRunValues = new double[RUN_LENGTH];
+        private double mThreshold;
+
+        void reset(double shortMsec, double longMsec) {
+            mShort = Math.log(Math.max(1, shortMsec));
+            mLong = Math.log(Math.max(1, longMsec));
+            mLogRatio = mLong - mShort;
+            mShortSeen = mLongSeen = mRun = 0;
+            mThreshold = Math.exp((mShort + mLong) / 2);
+        }
+
+        /**
+         * Add an element.
+         * @return True if the clusters were found to have moved to a new speed.
+         */
+        boolean add(long duration) {
+            if(duration <= 0) return false;
+            double x = Math.log(duration);
+            boolean isLong = x > (mShort + mLong) / 2;
+
+            if(isLong) mLongSeen++;
+            else mShortSeen++;
+
+            mRun = isLong == mLastLong ? mRun + 1 : 1;
+            mLastLong = isLong;
+            mRunValues[mRun - 1] = x;
+
+            // Either the speed has changed so far that both kinds of element land in one
+            // cluster, or the signal really is all one kind for a while, and the other cluster
+            // is out of date
+            if(mRun == RUN_LENGTH) {
+                mRun = 0;
+                if(split()) {
+                    mThreshold = Math.exp((mShort + mLong) / 2);
+                    return true;
+                }
+
+                mLogRatio = mLong - mShort;
+                mShortSeen = mLongSeen = 0;
+            }
+
+            if(mShortSeen < WARM_COUNT || mLongSeen < WARM_COUNT) {
+                // Tied: every element is evidence of the speed of both clusters
+                double shortEstimate = isLong ? x - mLogRatio : x;
+                mShort += (shortEstimate - mShort) / ROLLING_LENGTH;
+                mLong = mShort + mLogRatio;
+            }
+            else if(isLong) {
+                mLong += (x - mLong) / ROLLING_LENGTH;
+            }
+            else {
+                mShort += (x - mShort) / ROLLING_LENGTH;
+            }
+
+            mThreshold = Math.exp((mShort + mLong) / 2);
+            return false;
+        }
+
+        /**
+         * Move both clusters by the same factor, when the other pair has found a new speed.
+         */
+        void shift(double logFactor) {
+            mShort += logFactor;
+            mLong += logFactor;
+            mThreshold = Math.exp((mShort + mLong) / 2);
+        }
+
+        /**
+         * Divide the last run of elements into two clusters, and start again from those if they
+         * are far enough apart.
+         * @return True if the run held two kinds of element.
+         */
+        private boolean split() {
+            double low = Double.MAX_VALUE;
+            double high = -Double.MAX_VALUE;
+            for(double x : mRunValues) {
+                low = Math.min(low, x);
+                high = Math.max(high, x);
+            }
+
+            // Two-means, starting from the extremes
+            int lowCount = 0;
+            for(int trial = 0; trial < 10; trial++) {
+                double threshold = (low + high) / 2;
+                double lowTotal = 0, highTotal = 0;
+                lowCount = 0;
+                for(double x : mRunValues) {
+                    if(x < threshold) {
+                        lowTotal += x;
+                        lowCount++;
+                    }
+                    else highTotal += x;
+                }
+                if(lowCount == 0 || lowCount == RUN_LENGTH) return false;
+
+                low = lowTotal / lowCount;
+                high = highTotal / (RUN_LENGTH - lowCount);
+            }
+
+            if(high - low < Math.log(MIN_RATIO)) return false;
+
+            mShort = low;
+            mLong = high;
+            mLogRatio = high - low;
+            mShortSeen = lowCount;
+            mLongSeen = RUN_LENGTH - lowCount;
+            return true;
+        }
+
+        boolean isWarm() {
+            return mShortSeen >= WARM_COUNT && mLongSeen >= WARM_COUNT && mLong - mShort >= Math.log(MIN_RATIO);
+        }
+    }
+}
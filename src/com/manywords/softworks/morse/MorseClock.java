@@ -0,0 +1,55 @@
+package com.manywords.softworks.morse;
+
+/**
+ * A source of time for a {@link MorseKey}. The clock tells the key what time it is, and fires
+ * the deadlines the key uses to find the ends of characters and words.
+ * <br /><br />
+ * {@link #SYSTEM} follows the wall clock, and is what a key uses when it is driven live. A
+ * {@link MorseVirtualClock} only moves when key events (or the client) tell it to, so recorded
+ * input can be replayed through a key as fast as it can be read.
+ */
+public interface MorseClock {
+    /**
+     * A clock which follows {@link System#currentTimeMillis()}.
+     */
+    MorseClock SYSTEM = new MorseSystemClock();
+
+    /**
+     *
+     * @return The current time in milliseconds.
+     */
+    long currentTimeMillis();
+
+    /**
+     * Create a deadline which runs the given action when it expires. A new deadline is not
+     * scheduled.
+     * @param action The action to run.
+     * @return The deadline.
+     */
+    Deadline newDeadline(Runnable action);
+
+    /**
+     * Called by {@link MorseKey} before it handles an event at the given time. Clocks which
+     * follow real time may ignore this; virtual clocks should fire any deadlines due at or before
+     * the given time, then move to it.
+     * @param timestamp The time of the event, in milliseconds.
+     */
+    void advanceTo(long timestamp);
+
+    /**
+     * An action to be run at a given time. A deadline may be scheduled and cancelled any number
+     * of times; scheduling it again replaces the previous expiry time.
+     */
+    interface Deadline {
+        /**
+         * Schedule this deadline, replacing any pending expiry.
+         * @param timestamp The time in milliseconds at which the action should run.
+         */
+        void schedule(long timestamp);
+
+        /**
+         * Cancel any pending expiry.
+         */
+        void cancel();
+    }
+}
@@ -1,5 +1,7 @@
 package com.manywords.softworks.morse;
 
+import java.util.Arrays;
+
 /**
  * Useful constants and lookup functions.
  */
@@ -108,15 +110,141 @@ class MorseConstants {
 
     public static final int PARIS_LENGTH = signalLength(P, A, R, I, S, SPACE);
 
+    /*
+     * A dot/dash pattern may be packed into a single int: a leading 1 bit, followed by one bit
+     * per element, first element highest, 0 for a dot and 1 for a dash. The position of the
+     * leading bit gives the length, so E (.) is 0b10, T (-) is 0b11, and A (.-) is 0b101.
+     */
+
+    /**
+     * The packed code for an empty pattern.
+     */
+    public static final int EMPTY_CODE = 1;
+
+    /**
+     * Returned in place of a packed code for patterns which are too long to pack.
+     */
+    public static final int NO_CODE = 0;
+
+    /**
+     * The longest pattern which can be packed.
+     */
+    public static final int MAX_CODE_LENGTH = 30;
+
+    public static int pack(int[] signal) {
+        if(signal.length > MAX_CODE_LENGTH) return NO_CODE;
+
+        int code = EMPTY_CODE;
+        for(int mark : signal) {
+            code = (code << 1) | (mark == DOT ? 0 : 1);
+        }
+        return code;
+    }
+
+    public static int[] unpack(int code) {
+        if(code == NO_CODE) return null;
+
+        int[] signal = new int[codeLength(code)];
+        for(int i = 0; i < signal.length; i++) {
+            signal[i] = ((code >>> (signal.length - 1 - i)) & 1) == 0 ? DOT : DASH;
+        }
+        return signal;
+    }
+
+    public static int codeLength(int code) {
+        return 31 - Integer.numberOfLeadingZeros(code);
+    }
+
     public static boolean isSpace(int[] signal) {
         if(signal.length == 1 && signal[0] == SPACE_LENGTH) return true;
         return false;
     }
 
-    private static final MorseTree MORSE_TREE = new MorseTree(ALL_SIGNALS, SIGNAL_CHARS, ALL_PROSIGNS, PROSIGN_CONSTANTS);
+    // Decoding tables, indexed directly by packed code. A code is always larger than any
+    // code of a shorter pattern, so the tables only need to reach past the longest pattern.
+    private static final MorseCharacter[] CHARACTER_TABLE = new MorseCharacter[2 << longestPattern(ALL_SIGNALS)];
+    private static final MorseCharacter[] PROSIGN_TABLE = new MorseCharacter[2 << longestPattern(ALL_PROSIGNS)];
+
+    static {
+        for(int i = 0; i < ALL_SIGNALS.length; i++) {
+            CHARACTER_TABLE[pack(ALL_SIGNALS[i])] = new MorseCharacter(SIGNAL_CHARS.substring(i, i + 1));
+        }
+
+        for(int i = 0; i < ALL_PROSIGNS.length; i++) {
+            PROSIGN_TABLE[pack(ALL_PROSIGNS[i])] = new MorseCharacter(PROSIGN_CONSTANTS[i]);
+        }
+    }
+
+    // Encoding tables, indexed by char. Characters outside the tables have no Morse equivalent.
+    private static final int ENCODING_TABLE_SIZE = 128;
+
+    // The packed code for each char, in either case, including the prosign chars
+    private static final int[] ENCODING_TABLE = new int[ENCODING_TABLE_SIZE];
+
+    // The index into ALL_SIGNALS for each char in SIGNAL_CHARS, or -1
+    private static final int[] SIGNAL_INDEX = new int[ENCODING_TABLE_SIZE];
+
+    static {
+        Arrays.fill(SIGNAL_INDEX, -1);
+
+        for(int i = 0; i < SIGNAL_CHARS.length(); i++) {
+            char c = SIGNAL_CHARS.charAt(i);
+            SIGNAL_INDEX[c] = i;
+            ENCODING_TABLE[c] = pack(ALL_SIGNALS[i]);
+            ENCODING_TABLE[Character.toLowerCase(c)] = pack(ALL_SIGNALS[i]);
+        }
+
+        ENCODING_TABLE['\n'] = pack(NEWLINE);
+        ENCODING_TABLE['\t'] = pack(PARAGRAPH);
+    }
+
+    /**
+     * Find the packed code to send for a character of text. Letters may be in either case, and
+     * newlines and tabs are sent as the {@link MorseProsign#NEWLINE} and
+     * {@link MorseProsign#PARAGRAPH} prosigns.
+     *
+     * @param c The character.
+     * @return The packed code, or {@link #NO_CODE} if the character cannot be sent.
+     */
+    public static int encode(char c) {
+        return c < ENCODING_TABLE_SIZE ? ENCODING_TABLE[c] : NO_CODE;
+    }
+
+    private static int longestPattern(int[][] signals) {
+        int longest = 0;
+        for(int[] signal : signals) {
+            longest = Math.max(longest, signal.length);
+        }
+        return longest;
+    }
+
+    /**
+     *
+     * @param code A packed dot/dash code.
+     * @return The shared printing character for the code, or null if there is none.
+     */
+    public static MorseCharacter lookupCharacter(int code) {
+        if(code <= NO_CODE || code >= CHARACTER_TABLE.length) return null;
+        return CHARACTER_TABLE[code];
+    }
+
+    /**
+     *
+     * @param code A packed dot/dash code.
+     * @return The shared prosign character for the code, or null if there is none.
+     */
+    public static MorseCharacter lookupProsignCharacter(int code) {
+        if(code <= NO_CODE || code >= PROSIGN_TABLE.length) return null;
+        return PROSIGN_TABLE[code];
+    }
 
     public static MorseProsign lookupProsign(int[] signal) {
-        return MORSE_TREE.lookupProsign(signal);
+        return lookupProsignCode(pack(signal));
+    }
+
+    public static MorseProsign lookupProsignCode(int code) {
+        MorseCharacter c = lookupProsignCharacter(code);
+        return c != null ? c.prosign : null;
     }
 
     public static int[] lookupProsign(String c) {
@@ -154,11 +282,30 @@ class MorseConstants {
     }
 
     public static String lookup(int[] signal) {
-        return MORSE_TREE.lookup(signal);
+        return lookupCode(pack(signal));
     }
 
+    public static String lookupCode(int code) {
+        MorseCharacter c = lookupCharacter(code);
+        return c != null ? c.character : "";
+    }
+
+    /**
+     * Find the dot/dash pattern for one printing character.
+     * <br /><br />
+     * Only a single upper-case character is found; see {@link #encode(char)} for either case.
+     * Versions before the encoding table searched {@link #SIGNAL_CHARS} for the string, and so
+     * found a longer string if it happened to appear there (returning its first character's
+     * pattern), and found "A" for the empty string. Those now return null.
+     *
+     * @param character The character, as a string of length 1.
+     * @return The pattern, or null if the string is not exactly one printing character.
+     */
     public static int[] lookup(String character) {
-        int index = SIGNAL_CHARS.indexOf(character);
+        if(character.length() != 1) return null;
+
+        char c = character.charAt(0);
+        int index = c < ENCODING_TABLE_SIZE ? SIGNAL_INDEX[c] : -1;
         if(index < 0) return null;
         else return ALL_SIGNALS[index];
     }
@@ -0,0 +1,242 @@
+package com.manywords.softworks.morse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Decodes complete Morse signals, such as those generated by
+ * {@link MorseProfile#generateSignal(CharSequence)} or recorded from a {@link MorseKey}, without
+ * waiting for them to play out in real time.
+ * <br /><br />
+ * Each signal is replayed through a fresh {@link MorseKey} running on a
+ * {@link MorseVirtualClock}, so the offline decoder uses exactly the same lookup, fallback
+ * decoding, and adaptive speed logic as a live key, but runs on the calling thread at CPU speed.
+ * <br /><br />
+ * The speed settings of a decoder apply to every signal it decodes. Decoders may be reused, but
+ * are not thread-safe.
+ */
+public class MorseDecoder {
+    private MorseSpeed.Group mSpeed;
+    private MorseSpeed.Group mSpeedCeiling;
+    private MorseSpeed.Group mSpeedFloor;
+    private boolean mAdaptiveSpeed = true;
+    private boolean mRobustAdaptiveSpeed = false;
+    private int mFallbackCacheCapacity = MorseFallbackCache.DEFAULT_CAPACITY;
+
+    public MorseDecoder() {
+    }
+
+    /**
+     * Create a decoder with the same settings as another.
+     * @param other The decoder to copy.
+     */
+    public MorseDecoder(MorseDecoder other) {
+        mSpeed = other.mSpeed;
+        mSpeedCeiling = other.mSpeedCeiling;
+        mSpeedFloor = other.mSpeedFloor;
+        mAdaptiveSpeed = other.mAdaptiveSpeed;
+        mRobustAdaptiveSpeed = other.mRobustAdaptiveSpeed;
+        mFallbackCacheCapacity = other.mFallbackCacheCapacity;
+    }
+
+    /**
+     * Set the speed at which the decoder expects each signal to start.
+     * @param speed The desired speed group.
+     */
+    public void setSpeed(MorseSpeed.Group speed) {
+        mSpeed = speed;
+    }
+
+    /**
+     * Set adaptive speed mode. See {@link MorseKey#setAdaptiveSpeed(boolean)}.
+     * @param adaptive If true, the decoder will adjust its expected speed based on the signal.
+     */
+    public void setAdaptiveSpeed(boolean adaptive) {
+        mAdaptiveSpeed = adaptive;
+    }
+
+    public boolean getAdaptiveSpeed() {
+        return mAdaptiveSpeed;
+    }
+
+    /**
+     * Set robust adaptive speed mode. See {@link MorseKey#setRobustAdaptiveSpeed(boolean)}.
+     * @param robust If true, adaptive speed follows the median of recent elements.
+     */
+    public void setRobustAdaptiveSpeed(boolean robust) {
+        mRobustAdaptiveSpeed = robust;
+    }
+
+    public boolean getRobustAdaptiveSpeed() {
+        return mRobustAdaptiveSpeed;
+    }
+
+    /**
+     * Set how many signal shapes each key's fallback decoder remembers. See
+     * {@link MorseKey#setFallbackCacheCapacity(int)}.
+     * @param capacity The most shapes to remember, or 0 for none.
+     */
+    public void setFallbackCacheCapacity(int capacity) {
+        if(capacity < 0) throw new IllegalArgumentException("Capacity may not be negative");
+        mFallbackCacheCapacity = capacity;
+    }
+
+    public int getFallbackCacheCapacity() {
+        return mFallbackCacheCapacity;
+    }
+
+    public MorseSpeed.Group getSpeedCeiling() { return mSpeedCeiling; }
+    public void setSpeedCeiling(MorseSpeed.Group ceiling) {
+        mSpeedCeiling = ceiling;
+    }
+
+    public MorseSpeed.Group getSpeedFloor() { return mSpeedFloor; }
+    public void setSpeedFloor(MorseSpeed.Group floor) {
+        mSpeedFloor = floor;
+    }
+
+    /**
+     * Decode a complete signal.
+     * @param signal The signal to decode.
+     * @return The decoded characters, including inter-word spaces.
+     */
+    public List<MorseCharacter> decode(List<MorseSignal> signal) {
+        return decode(signal.iterator());
+    }
+
+    /**
+     * Decode a complete signal.
+     * @param signal The signal to decode.
+     * @return The decoded characters, including inter-word spaces.
+     */
+    public List<MorseCharacter> decode(Iterator<MorseSignal> signal) {
+        final List<MorseCharacter> result = new ArrayList<>();
+        decode(signal, new MorseListener() {
+            @Override
+            public void morseReceived(MorseCharacter c) {
+                result.add(c);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Decode a complete signal, delivering characters to a listener as they are decoded.
+     * @param signal The signal to decode.
+     * @param listener The listener to receive decoded characters, on the calling thread.
+     */
+    public void decode(Iterator<MorseSignal> signal, MorseListener listener) {
+        decode(signal, listener, null);
+    }
+
+    /**
+     * Decode a complete signal, split into pieces at long silences which are decoded in
+     * parallel. See {@link #decode(List, ForkJoinPool)}.
+     * @param signal The signal to decode.
+     * @param pool The pool on which to decode.
+     * @return The decoded characters, including inter-word spaces.
+     */
+    public List<MorseCharacter> decode(List<MorseSignal> signal, ForkJoinPool pool) {
+        return new MorseSplitDecoder(this, pool).decode(signal);
+    }
+
+    /**
+     * Decode one tone in a recording in parallel. The tone is detected in long sections
+     * at once, then the signal is split at silences long enough to end any word at any speed
+     * within the speed floor, which a single key would treat as a break in transmission
+     * anyway. The pieces are decoded in parallel, and their characters returned in order.
+     * <br /><br />
+     * With adaptive speed, each piece after the first starts from an estimate of the speed
+     * of its first few characters, rather than from the speed where the last piece left off.
+     * @param recording The recording to decode.
+     * @param toneHz The frequency of the tone in Hz.
+     * @param pool The pool on which to decode.
+     * @return The decoded characters, including inter-word spaces.
+     * @throws IOException If the recording cannot be read.
+     */
+    public List<MorseCharacter> decode(MorseRecording recording, double toneHz, ForkJoinPool pool) throws IOException {
+        MorseSplitDecoder decoder = new MorseSplitDecoder(this, pool);
+        return decoder.decode(decoder.detect(recording, toneHz));
+    }
+
+    /**
+     * Decode a complete signal, optionally starting from an estimate of its speed. See
+     * {@link MorseKey#seed(MorseSpeed.Group)}.
+     */
+    void decode(Iterator<MorseSignal> signal, MorseListener listener, MorseSpeed.Group estimate) {
+        MorseVirtualClock clock = new MorseVirtualClock();
+        MorseKey key = newKey(listener, clock);
+        if(estimate != null) key.seed(estimate);
+
+        long time = 0;
+        while(signal.hasNext()) {
+            MorseSignal s = signal.next();
+
+            if(s.on) {
+                key.down(time);
+                time += s.duration;
+                key.up(time);
+            }
+            else {
+                time += s.duration;
+            }
+        }
+
+        // Flush the last character and word
+        clock.advanceTo(Long.MAX_VALUE);
+    }
+
+    /**
+     * Decode one tone in a recording.
+     * @param recording The recording to decode.
+     * @param toneHz The frequency of the tone in Hz.
+     * @return The decoded characters, including inter-word spaces.
+     * @throws IOException If the recording cannot be read.
+     */
+    public List<MorseCharacter> decode(MorseRecording recording, double toneHz) throws IOException {
+        final List<MorseCharacter> result = new ArrayList<>();
+        decode(recording, toneHz, new MorseListener() {
+            @Override
+            public void morseReceived(MorseCharacter c) {
+                result.add(c);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Decode one tone in a recording, delivering characters to a listener as they are decoded.
+     * The recording is read through a {@link MorseToneDetector} straight from the mapped file,
+     * so recordings of any length may be decoded in bounded memory.
+     * @param recording The recording to decode.
+     * @param toneHz The frequency of the tone in Hz.
+     * @param listener The listener to receive decoded characters, on the calling thread.
+     * @throws IOException If the recording cannot be read.
+     */
+    public void decode(MorseRecording recording, double toneHz, MorseListener listener) throws IOException {
+        MorseVirtualClock clock = new MorseVirtualClock();
+        MorseKey key = newKey(listener, clock);
+        MorseToneDetector detector = new MorseToneDetector(key, recording.getFormat().getSampleRate(), toneHz);
+
+        recording.process(detector);
+
+        // Flush the last character and word
+        detector.finish();
+        clock.advanceTo(Long.MAX_VALUE);
+    }
+
+    MorseKey newKey(MorseListener listener, MorseClock clock) {
+        MorseKey key = new MorseKey(listener, clock);
+        key.setAdaptiveSpeed(mAdaptiveSpeed);
+        key.setRobustAdaptiveSpeed(mRobustAdaptiveSpeed);
+        key.setFallbackCacheCapacity(mFallbackCacheCapacity);
+        if(mSpeedCeiling != null) key.setSpeedCeiling(mSpeedCeiling);
+        if(mSpeedFloor != null) key.setSpeedFloor(mSpeedFloor);
+        if(mSpeed != null) key.setSpeed(mSpeed);
+
+        return key;
+    }
+}
@@ -0,0 +1,221 @@
+package com.manywords.softworks.morse;
+
+/**
+ * Remembers the speeds which {@link MorseFallbackDecoder} estimated for recent signal shapes,
+ * so that a shape an operator repeats is only clustered once.
+ * <br /><br />
+ * A shape is a signal's element lengths, quantized to fractions of the key's current dot length,
+ * so that the same character sent with slightly different timing, or at a slightly different
+ * speed, has the same shape. Shapes are found by a 64-bit hash and compared in full, so two
+ * shapes never share an entry.
+ * <br /><br />
+ * The cache is set-associative: each hash maps to a set of a few entries, and a full set evicts
+ * its least recently used entry. Entries are kept and refilled in place, so lookups allocate
+ * nothing. The tables are only allocated by the first lookup, so a key which never falls back
+ * pays nothing for its cache. Like its fallback decoder, a cache is only used by one thread at a
+ * time, but its counts may be read from any thread.
+ */
+class MorseFallbackCache {
+    static final int DEFAULT_CAPACITY = 256;
+
+    // Entries per set
+    private static final int WAYS = 4;
+
+    // Element lengths are quantized to this fraction of a dot, up to a limit. Finer quanta
+    // rarely match twice when timing is at all uneven.
+    private static final int QUANTA_PER_DOT = 2;
+    private static final int MAX_QUANTA = 32 * QUANTA_PER_DOT;
+
+    // Marks an entry whose shape the fallback decoder could not measure
+    static final double NO_ESTIMATE = Double.NaN;
+
+    // The tables, or null until the first lookup
+    private int mCapacity;
+    private int mSetMask;
+    private long[] mHashes;
+    private int[][] mShapes;
+    private int[] mShapeLengths;
+    private double[] mRatios;
+    private long[] mLastUsed;
+    private long mUseClock;
+
+    // The shape of the last signal looked up, which is stored if it missed
+    private int[] mShape = new int[0];
+    private int mShapeLength;
+    private long mHash;
+    private int mSlot = -1;
+    private double mRatio;
+
+    private MorseMetrics mMetrics = MorseMetrics.getShared();
+
+    private volatile long mHits;
+    private volatile long mMisses;
+    private volatile long mEvictions;
+
+    MorseFallbackCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     *
+     * @param capacity The most shapes to remember, rounded up to a power-of-two number of
+     *                 sets, or 0 to remember none.
+     */
+    MorseFallbackCache(int capacity) {
+        setCapacity(capacity);
+    }
+
+    /**
+     * Change how many shapes to remember, forgetting those remembered so far if it changes.
+     * @param capacity The most shapes to remember, rounded up to a power-of-two number of
+     *                 sets, or 0 to remember none.
+     */
+    void setCapacity(int capacity) {
+        if(capacity < 0) throw new IllegalArgumentException("Capacity may not be negative");
+        if(capacity == mCapacity) return;
+
+        mCapacity = capacity;
+        mHashes = null;
+        mShapes = null;
+        mShapeLengths = null;
+        mRatios = null;
+        mLastUsed = null;
+        mSlot = -1;
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    private void allocate() {
+        int sets = 1;
+        while(sets * WAYS < mCapacity) sets <<= 1;
+        int size = sets * WAYS;
+
+        mSetMask = sets - 1;
+        mHashes = new long[size];
+        mShapes = new int[size][];
+        mShapeLengths = new int[size];
+        mRatios = new double[size];
+        mLastUsed = new long[size];
+    }
+
+    /**
+     * Look up a signal.
+     * @param signal The signal.
+     * @param dotMsec The key's current dot length, to which the shape is relative.
+     * @return True if the shape is cached, and its estimate is available from
+     * {@link #getRatio()}. A miss is remembered, to be filled by {@link #store(double)}.
+     */
+    boolean lookup(MorseSignalBuffer signal, int dotMsec) {
+        if(mCapacity == 0) {
+            mMisses++;
+            mSlot = -1;
+            return false;
+        }
+        if(mHashes == null) allocate();
+
+        quantize(signal, dotMsec);
+
+        int set = (int) (mHash ^ (mHash >>> 32)) & mSetMask;
+        int first = set * WAYS;
+        int oldest = first;
+        for(int i = first; i < first + WAYS; i++) {
+            if(mShapes[i] != null && mHashes[i] == mHash && sameShape(i)) {
+                mLastUsed[i] = ++mUseClock;
+                mHits++;
+                mSlot = -1;
+                mRatio = mRatios[i];
+                return true;
+            }
+
+            if(mShapes[oldest] != null && (mShapes[i] == null || mLastUsed[i] < mLastUsed[oldest])) oldest = i;
+        }
+
+        mMisses++;
+        mSlot = oldest;
+        return false;
+    }
+
+    /**
+     *
+     * @return The estimated dot length from the last hit, as a multiple of the key's dot length,
+     * or {@link #NO_ESTIMATE} if the shape could not be measured.
+     */
+    double getRatio() {
+        return mRatio;
+    }
+
+    /**
+     * Remember the estimate for the signal which last missed.
+     * @param ratio The estimated dot length as a multiple of the key's dot length, or
+     *              {@link #NO_ESTIMATE}.
+     */
+    void store(double ratio) {
+        if(mSlot < 0) return;
+
+        int i = mSlot;
+        mSlot = -1;
+
+        if(mShapes[i] != null) {
+            mEvictions++;
+            mMetrics.fallbackCacheEvictions.increment();
+        }
+        if(mShapes[i] == null || mShapes[i].length < mShapeLength) mShapes[i] = new int[mShapeLength];
+
+        System.arraycopy(mShape, 0, mShapes[i], 0, mShapeLength);
+        mShapeLengths[i] = mShapeLength;
+        mHashes[i] = mHash;
+        mRatios[i] = ratio;
+        mLastUsed[i] = ++mUseClock;
+    }
+
+    private boolean sameShape(int entry) {
+        if(mShapeLengths[entry] != mShapeLength) return false;
+
+        int[] shape = mShapes[entry];
+        for(int i = 0; i < mShapeLength; i++) {
+            if(shape[i] != mShape[i]) return false;
+        }
+        return true;
+    }
+
+    private void quantize(MorseSignalBuffer signal, int dotMsec) {
+        int size = signal.size();
+        if(mShape.length < size) mShape = new int[Math.max(size, mShape.length * 2)];
+
+        double quantum = Math.max(1, dotMsec) / (double) QUANTA_PER_DOT;
+
+        // FNV-1a
+        long hash = 0xcbf29ce484222325L;
+        for(int i = 0; i < size; i++) {
+            int quanta = (int) Math.min(MAX_QUANTA, Math.round(signal.getDuration(i) / quantum));
+            int element = quanta << 1 | (signal.isOn(i) ? 1 : 0);
+            mShape[i] = element;
+            hash = (hash ^ element) * 0x100000001b3L;
+        }
+
+        mShapeLength = size;
+        mHash = hash;
+    }
+
+    /**
+     * Set the registry into which evictions are counted.
+     * @param metrics The registry.
+     */
+    void setMetrics(MorseMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    long getHits() {
+        return mHits;
+    }
+
+    long getMisses() {
+        return mMisses;
+    }
+
+    long getEvictions() {
+        return mEvictions;
+    }
+}
@@ -1,146 +1,220 @@
 package com.manywords.softworks.morse;
 
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Created by jay on 3/6/17.
+ * <br /><br />
+ * Estimates the speed of a signal the key could not decode by mean-shift clustering of its
+ * element lengths, then decodes it again at that speed.
+ * <br /><br />
+ * Each key owns one fallback decoder and reuses it for every character. Clustering runs over a
+ * sorted array of the distinct element lengths with prefix sums, so each window's mean is two
+ * binary searches, and every buffer is kept between characters: a decode allocates nothing
+ * unless its signal is longer than any before it.
+ * <br /><br />
+ * Estimates are remembered by the shape of their signals in a {@link MorseFallbackCache}, so a
+ * shape the sender repeats is only clustered once.
  */
 class MorseFallbackDecoder {
-    private List<MorseSignal> mSignal;
+    // Mean-shift gives up after this many passes
+    private static final int MAX_TRIALS = 100;
 
+    private MorseSignalBuffer mSignal;
     private MorseSpeed mCurrentMarkSpeed;
+    private MorseStats mStats;
 
-    private boolean hasCandidateCharacter = false;
-    private String mCandidateCharacter = null;
-
-    private boolean hasCandidateProsign = false;
-    private MorseProsign mCandidateProsign = null;
+    // Distinct element lengths in ascending order, and their running totals
+    private int[] mValues = new int[64];
+    private long[] mPrefix = new long[65];
+    private int mValueCount;
 
-    // Derived from marks
-    private MorseSpeed mEstimatedMarkSpeed;
+    // Window centers during mean-shift, and after merging
+    private int[] mCenters = new int[16];
+    private int mCenterCount;
+    private int[] mMerged = new int[16];
+    private int mMergedCount;
 
     // Derived from marks, or from silences
-    private MorseSpeed mEstimatedCharSpeed;
-    private MorseSpeed mEstimatedWordSpeed;
+    private int mEstimatedDotMsec;
 
-    private MorseStats mStats;
+    private final List<MorseCharacter> mResult = new ArrayList<>();
+
+    private final MorseFallbackCache mCache = new MorseFallbackCache();
+
+    private MorseMetrics mMetrics = MorseMetrics.getShared();
+
+    private boolean debug = false;
 
-    MorseFallbackDecoder(List<MorseSignal> signal, MorseSpeed currentSpeed, MorseStats stats, String candidateChar, MorseProsign candidateProsign) {
+    /**
+     * Decode a signal at an estimated speed.
+     * @return The decoded characters, if the decoder thinks the fallback should be used, or null
+     * otherwise. The list is reused by the next call.
+     */
+    List<MorseCharacter> decode(MorseSignalBuffer signal, MorseSpeed currentSpeed, MorseStats stats, String candidateChar, MorseProsign candidateProsign) {
         mSignal = signal;
         mCurrentMarkSpeed = currentSpeed;
         mStats = stats;
 
-        mCandidateCharacter = candidateChar;
-        if(candidateChar != null) hasCandidateCharacter = true;
+        try {
+            mMetrics.fallbackInvocations.increment();
 
-        mCandidateProsign = candidateProsign;
-        if(candidateProsign != null) hasCandidateProsign = true;
-    }
+            // Clustering is the expensive part, so repeated shapes reuse their estimate
+            int dotMsec = Math.max(1, mCurrentMarkSpeed.dotMsec);
+            if(mCache.lookup(signal, dotMsec)) {
+                mMetrics.fallbackCacheHits.increment();
+                double ratio = mCache.getRatio();
+                if(Double.isNaN(ratio)) return null;
+                mEstimatedDotMsec = (int) Math.round(ratio * dotMsec);
+            }
+            else {
+                mMetrics.fallbackCacheMisses.increment();
+                boolean measured = analyze();
+                mCache.store(measured ? (double) mEstimatedDotMsec / dotMsec : MorseFallbackCache.NO_ESTIMATE);
+                if(!measured) return null;
+            }
 
-    private boolean debug = false;
+            mResult.clear();
+
+            int charDotMsec = getEstimatedCharDotMsec();
+            int separationDuration;
+
+            // If we're close to the expected speed, allow shorter character separators.
+            if(mEstimatedDotMsec > mCurrentMarkSpeed.dotMsec * 0.75 && mCurrentMarkSpeed.dotMsec * 1.25 > mEstimatedDotMsec) {
+                separationDuration = (int) (charDotMsec * 1.5);
+            }
+            else {
+                separationDuration = (int) (charDotMsec * 3 * MorseKey.FUDGE_FACTOR);
+            }
+
+            // Split the signal into characters at long silences, which are dropped. Each character
+            // is the range [start, i) of the signal.
+            double dashThreshold = mEstimatedDotMsec * 3 * MorseKey.FUDGE_FACTOR;
+            int start = 0;
+            for(int i = 1; i <= mSignal.size(); i++) {
+                if(i < mSignal.size() && (mSignal.isOn(i) || mSignal.getDuration(i) <= separationDuration)) continue;
+
+                // The last character is only decoded if it has anything in it
+                if(i == mSignal.size() && start == i) break;
+
+                if(start == i || (i - start == 1 && !mSignal.isOn(start))) {
+                    mResult.add(MorseCharacter.SPACE);
+                }
+                else {
+                    int code = MorseSignal.toPackedCode(mSignal, start, i, dashThreshold, mStats);
+                    MorseCharacter lookupResult = MorseConstants.lookupCharacter(code);
+                    if(lookupResult != null) {
+                        mResult.add(lookupResult);
+                    }
+                }
+
+                start = i + 1;
+            }
+
+            // If the fallback decoder decoded the same thing as the ordinary decoder, stay with the ordinary
+            // decoder for stats/adaptive speed purposes
+            if(mResult.size() == 1) {
+                if(candidateChar != null && candidateChar.equals(mResult.get(0).character)) {
+                    return null;
+                }
+                if(candidateProsign != null && candidateProsign.equals(mResult.get(0).prosign)) {
+                    return null;
+                }
+            }
+
+            return mResult;
+        }
+        finally {
+            mSignal = null;
+            mStats = null;
+        }
+    }
 
     // Do mean-shift clustering to determine speeds
     private boolean analyze() {
+        int size = mSignal.size();
         int min = Integer.MAX_VALUE;
         int max = 0;
-        for(MorseSignal s : mSignal) {
-            if(s.duration < min) min = (int) s.duration;
+        for(int i = 0; i < size; i++) {
+            long duration = mSignal.getDuration(i);
+            if(duration < min) min = (int) duration;
 
             // don't let silences set the max
-            if(s.duration > max && s.on) max = (int) s.duration;
+            if(duration > max && mSignal.isOn(i)) max = (int) duration;
         }
 
-        int arrayMin = 0;
         max = (int) (max * 1.1);
-        int range = (max - arrayMin);
-        int[] histogram = new int[range];
 
-        for(MorseSignal s : mSignal) {
-            // we ditch long silences
-            if(s.duration < histogram.length) histogram[(int) s.duration]++;
+        // we ditch long silences
+        if(mValues.length < size) {
+            mValues = new int[size];
+            mPrefix = new long[size + 1];
+        }
+        int count = 0;
+        for(int i = 0; i < size; i++) {
+            long duration = mSignal.getDuration(i);
+            if(duration < max) mValues[count++] = (int) duration;
+        }
+
+        // Only distinct lengths count toward a window's mean, not how often each occurs
+        Arrays.sort(mValues, 0, count);
+        mValueCount = 0;
+        for(int i = 0; i < count; i++) {
+            if(mValueCount == 0 || mValues[mValueCount - 1] != mValues[i]) mValues[mValueCount++] = mValues[i];
+        }
+        for(int i = 0; i < mValueCount; i++) {
+            mPrefix[i + 1] = mPrefix[i] + mValues[i];
         }
 
         if(debug) System.out.println("Expected dot speed: " + mCurrentMarkSpeed.dotMsec);
         if(debug) System.out.println("Min/max " + min + "/" + max);
-        if(debug) System.out.println("Histogram: " + Arrays.toString(histogram));
+        if(debug) System.out.println("Lengths: " + Arrays.toString(Arrays.copyOf(mValues, mValueCount)));
 
         final int windowRadius = Math.max(min, 75);
         final int mergeRadius = windowRadius / 3;
-        //System.out.println("Window size: " + windowRadius);
-        List<Window> windows = new ArrayList<>();
-        for(int i = arrayMin; i < max; i += windowRadius) {
-            if(countHistogramPoints(histogram, i, windowRadius) > 0) windows.add(new Window(i, windowRadius));
+
+        mCenterCount = 0;
+        for(int center = 0; center < max; center += windowRadius) {
+            if(countPoints(center, windowRadius) > 0) addCenter(center);
         }
 
         int trials = 0;
         while(true) {
             boolean converged = true;
 
-            for(Window w : windows) {
-                int oldCenter = w.center;
-                w.center = averageHistogramPoints(histogram, w.center, w.radius);
+            for(int i = 0; i < mCenterCount; i++) {
+                int oldCenter = mCenters[i];
+                mCenters[i] = averagePoints(oldCenter, windowRadius);
 
-                if(oldCenter != w.center) converged = false;
+                if(oldCenter != mCenters[i]) converged = false;
             }
 
-            Map<Integer, List<Window>> windowMap = new HashMap<>();
-
-            for(Window w : windows) {
-                if(windowMap.get(w.center) == null) windowMap.put(w.center, new ArrayList<Window>());
-
-                windowMap.get(w.center).add(w);
-            }
-
-            for(List<Window> l : windowMap.values()) {
-                for(int i = 0; i < l.size() - 1; i++) {
-                    windows.remove(l.get(i));
-                }
-            }
+            removeDuplicateCenters();
 
             trials++;
-            if(converged || trials > 100) break;
+            if(converged || trials > MAX_TRIALS) break;
         }
 
-        List<Window> toMerge = new ArrayList<>();
-        List<Window> merged = new ArrayList<>();
-        for(int i = 0; i < windows.size(); i++) {
-            Window current = windows.get(i);
-            Window nextNeighbor;
-
-            boolean finishMerge = false;
-            if(windows.size() > i+1) {
-                nextNeighbor = windows.get(i+1);
-                if(nextNeighbor.center < current.center + mergeRadius) {
-                    toMerge.add(nextNeighbor);
-                    if(!merged.contains(current)) merged.add(current);
-                }
-                else {
-                    finishMerge = true;
-                }
-            }
-            else finishMerge = true;
+        mergeCenters(mergeRadius);
 
-            if(finishMerge) {
-                if(toMerge.size() == 0 && !merged.contains(current)) merged.add(current);
-                else if(toMerge.size() > 0) {
-                    merged.add(mergeWindows(toMerge));
-                }
-            }
-        }
+        if(debug) System.out.println("After " + trials + " trials: " + Arrays.toString(Arrays.copyOf(mMerged, mMergedCount)));
 
-        if(debug) System.out.println("After " + trials + " trials: " + merged);
+        // Nothing long enough to measure
+        if(mMergedCount == 0) return false;
 
-        if(merged.size() == 1) {
-            int estimate = merged.get(0).center;
+        if(mMergedCount == 1) {
+            int estimate = mMerged[0];
             if(estimate > MorseKey.FUDGE_FACTOR * mCurrentMarkSpeed.dashMsec) {
                 estimate /= 3;
             }
 
             setEstimatedSpeeds(estimate);
         }
-        else if(merged.size() == 2) {
-            int dotCandidateMsec = merged.get(0).center;
-            int dashCandidateMsec = merged.get(1).center;
+        else if(mMergedCount == 2) {
+            int dotCandidateMsec = mMerged[0];
+            int dashCandidateMsec = mMerged[1];
 
             // ignore a too-short dash candidate (?)
             if(dashCandidateMsec < 2 * dotCandidateMsec) {
@@ -153,173 +227,129 @@ class MorseFallbackDecoder {
         }
         else {
             // round up
-            int median = merged.get(merged.size() / 2).center;
+            int median = mMerged[mMergedCount / 2];
 
-            int count = 0;
+            int below = 0;
             int estimate = 0;
-            for(Window w : merged) {
-                if(w.center < median) {
-                    estimate += w.center;
-                    count++;
+            for(int i = 0; i < mMergedCount; i++) {
+                if(mMerged[i] < median) {
+                    estimate += mMerged[i];
+                    below++;
                 }
             }
 
-            estimate = estimate / count;
+            estimate = below > 0 ? estimate / below : median;
 
-            if(merged.get(0).center > 0.66 * median && estimate > MorseKey.FUDGE_FACTOR * mCurrentMarkSpeed.dashMsec) {
+            if(mMerged[0] > 0.66 * median && estimate > MorseKey.FUDGE_FACTOR * mCurrentMarkSpeed.dashMsec) {
                 estimate /= 3;
-                setEstimatedSpeeds(estimate);
             }
-            else {
-                setEstimatedSpeeds(estimate);
-            }
-        }
-
-        if(mEstimatedCharSpeed == null || mEstimatedMarkSpeed == null || mEstimatedWordSpeed == null) {
-            throw new IllegalStateException();
+            setEstimatedSpeeds(estimate);
         }
 
         return true;
     }
 
-    private Window mergeWindows(List<Window> toMerge) {
-        int total = 0;
-        for(Window w : toMerge) {
-            total += w.center;
-        }
-
-        return new Window(total / toMerge.size(), toMerge.get(0).radius);
-    }
-
-    private int countHistogramPoints(int[] histogram, int center, int radius) {
-        int start = Math.max(0, center - radius);
-        int end = Math.min(histogram.length, center + radius);
-        int count = 0;
-        for(int i = start; i < end; i++) {
-            if(histogram[i] > 0) count++;
+    private void addCenter(int center) {
+        if(mCenterCount == mCenters.length) {
+            mCenters = Arrays.copyOf(mCenters, mCenterCount * 2);
+            mMerged = new int[mCenters.length];
         }
-
-        return count;
+        mCenters[mCenterCount++] = center;
     }
 
-    private int averageHistogramPoints(int[] histogram, int center, int radius) {
-        int start = Math.max(0, center - radius);
-        int end = Math.min(histogram.length, center + radius);
-        int count = 0;
-        int sum = 0;
-        for(int i = start; i < end; i++) {
-            if(histogram[i] > 0) {
-                count++;
-                sum += i;
+    // Windows which have converged on the same center are one window; keep the last of each
+    private void removeDuplicateCenters() {
+        int kept = 0;
+        for(int i = 0; i < mCenterCount; i++) {
+            boolean duplicate = false;
+            for(int j = i + 1; j < mCenterCount; j++) {
+                if(mCenters[j] == mCenters[i]) {
+                    duplicate = true;
+                    break;
+                }
             }
+            if(!duplicate) mCenters[kept++] = mCenters[i];
         }
-
-        return (int) Math.round((double) sum / (double) count);
+        mCenterCount = kept;
     }
 
-    public void setDebug(boolean debug) {
-        this.debug = debug;
-    }
-
-    private static class Window {
-        int center;
-        int radius;
+    // Replace each run of neighboring centers closer than the merge radius with their average
+    private void mergeCenters(int mergeRadius) {
+        mMergedCount = 0;
 
-        Window(int center, int radius) { this.center = center; this.radius = radius; }
+        int runStart = 0;
+        for(int i = 1; i <= mCenterCount; i++) {
+            if(i < mCenterCount && mCenters[i] < mCenters[i - 1] + mergeRadius) continue;
 
-        @Override
-        public String toString() {
-            return "W:" + center;
+            int total = 0;
+            for(int j = runStart; j < i; j++) {
+                total += mCenters[j];
+            }
+            mMerged[mMergedCount++] = total / (i - runStart);
+            runStart = i;
         }
     }
 
-    private void setEstimatedSpeeds(int dotMsec) {
-        if(debug) System.out.println("Estimated dot speed: " + dotMsec);
-        mEstimatedMarkSpeed = new MorseSpeed(dotMsec);
-        mEstimatedCharSpeed = new MorseSpeed((int) (dotMsec * 1.1));
-        mEstimatedWordSpeed = new MorseSpeed((int) (dotMsec * 1.1));
-    }
-
-    /**
-     *
-     * @return A list of MorseCharacters if the decoder thinks the fallback should be used.
-     * Null otherwise.
-     */
-    List<MorseCharacter> decode() {
-        if(!analyze()) return null;
-
-        List<List<MorseSignal>> separatedSignal = new ArrayList<>();
-        List<MorseCharacter> result = new ArrayList<>();
-
-        List<MorseSignal> character = new ArrayList<>();
-
-        int separationDuration;
-
-        // If we're close to the expected speed, allow shorter character separators.
-        if(mEstimatedMarkSpeed.dotMsec > mCurrentMarkSpeed.dotMsec * 0.75 && mCurrentMarkSpeed.dotMsec * 1.25 > mEstimatedMarkSpeed.dotMsec) {
-            separationDuration = (int) (mEstimatedCharSpeed.dotMsec * 1.5);
-        }
-        else {
-            separationDuration = (int) (mEstimatedCharSpeed.dashMsec * MorseKey.FUDGE_FACTOR);
+    // The index of the first distinct length at or above a value
+    private int lowerBound(int value) {
+        int low = 0;
+        int high = mValueCount;
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            if(mValues[middle] < value) low = middle + 1;
+            else high = middle;
         }
+        return low;
+    }
 
-        boolean initial = true;
-        for(MorseSignal signal : mSignal) {
-            if(!initial && !signal.on && signal.duration > separationDuration) {
-                separatedSignal.add(character);
+    private int countPoints(int center, int radius) {
+        return lowerBound(center + radius) - lowerBound(center - radius);
+    }
 
-                character = new ArrayList<>();
-                character.add(signal);
+    private int averagePoints(int center, int radius) {
+        int start = lowerBound(center - radius);
+        int end = lowerBound(center + radius);
 
-                character = new ArrayList<>();
-            }
-            else {
-                character.add(signal);
-            }
+        // An empty window stays where it is
+        if(start == end) return center;
+        return (int) Math.round((double) (mPrefix[end] - mPrefix[start]) / (end - start));
+    }
 
-            initial = false;
-        }
+    MorseFallbackCache getCache() {
+        return mCache;
+    }
 
-        if(character.size() > 0) {
-            separatedSignal.add(character);
-        }
+    void setCacheCapacity(int capacity) {
+        mCache.setCapacity(capacity);
+    }
 
-        for(List<MorseSignal> c : separatedSignal) {
-            if(c.isEmpty() || (c.size() == 1 && !c.get(0).on)) {
-                result.add(new MorseCharacter(" "));
-                continue;
-            }
+    void setMetrics(MorseMetrics metrics) {
+        mMetrics = metrics;
+        mCache.setMetrics(metrics);
+    }
 
-            int[] dotDashArray = MorseSignal.toDotDashArray(c, mEstimatedMarkSpeed, mStats);
-            String lookupResult = MorseConstants.lookup(dotDashArray);
-            if(!lookupResult.isEmpty()) {
-                result.add(new MorseCharacter(lookupResult));
-            }
-        }
+    public void setDebug(boolean debug) {
+        this.debug = debug;
+    }
 
-        // If the fallback decoder decoded the same thing as the ordinary decoder, stay with the ordinary
-        // decoder for stats/adaptive speed purposes
-        if(result.size() == 1) {
-            if(hasCandidateCharacter && mCandidateCharacter.equals(result.get(0).character)) {
-                return null;
-            }
-            if(hasCandidateProsign && mCandidateProsign.equals(result.get(0).prosign)) {
-                return null;
-            }
-        }
+    private void setEstimatedSpeeds(int dotMsec) {
+        if(debug) System.out.println("Estimated dot speed: " + dotMsec);
+        mEstimatedDotMsec = dotMsec;
+    }
 
-        return result;
+    private int getEstimatedCharDotMsec() {
+        return (int) (mEstimatedDotMsec * 1.1);
     }
 
     public MorseSpeed getEstimatedMarkSpeed() {
-        return mEstimatedMarkSpeed;
+        return new MorseSpeed(mEstimatedDotMsec);
     }
 
     public MorseSpeed getEstimatedCharSpeed() {
-        return mEstimatedCharSpeed;
+        return new MorseSpeed(getEstimatedCharDotMsec());
     }
 
     public MorseSpeed getEstimatedWordSpeed() {
-        return mEstimatedWordSpeed;
+        return new MorseSpeed(getEstimatedCharDotMsec());
     }
 }
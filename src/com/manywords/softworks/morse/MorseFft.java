@@ -0,0 +1,108 @@
+package com.manywords.softworks.morse;
+
+/**
+ * An in-place radix-2 complex FFT of a fixed size, with its twiddle factors, bit-reversal
+ * permutation, and a Hann window computed up front.
+ * <br /><br />
+ * A transform only reads the shared tables, so one instance may be used from many threads at
+ * once, as long as each has its own data arrays.
+ */
+class MorseFft {
+    private final int mSize;
+    private final int[] mReverse;
+    private final double[] mCos;
+    private final double[] mSin;
+    private final double[] mWindow;
+
+    /**
+     *
+     * @param size The transform size, a power of two.
+     */
+    MorseFft(int size) {
+        if(size < 2 || Integer.bitCount(size) != 1) throw new IllegalArgumentException("FFT size must be a power of two");
+
+        mSize = size;
+        int bits = Integer.numberOfTrailingZeros(size);
+
+        mReverse = new int[size];
+        for(int i = 0; i < size; i++) {
+            mReverse[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+
+        mCos = new double[size / 2];
+        mSin = new double[size / 2];
+        for(int i = 0; i < size / 2; i++) {
+            mCos[i] = Math.cos(2 * Math.PI * i / size);
+            mSin[i] = -Math.sin(2 * Math.PI * i / size);
+        }
+
+        mWindow = new double[size];
+        for(int i = 0; i < size; i++) {
+            mWindow[i] = 0.5 - 0.5 * Math.cos(2 * Math.PI * i / size);
+        }
+    }
+
+    int getSize() {
+        return mSize;
+    }
+
+    /**
+     * Window real samples, transform them, and write the power in each bin up to the Nyquist
+     * frequency.
+     * @param samples The samples.
+     * @param offset The index of the first of {@link #getSize()} samples.
+     * @param re Scratch space of {@link #getSize()} elements.
+     * @param im Scratch space of {@link #getSize()} elements.
+     * @param power Receives {@link #getSize()} / 2 bin powers.
+     */
+    void powerSpectrum(double[] samples, int offset, double[] re, double[] im, double[] power) {
+        for(int i = 0; i < mSize; i++) {
+            re[i] = samples[offset + i] * mWindow[i];
+            im[i] = 0;
+        }
+
+        transform(re, im);
+
+        for(int i = 0; i < mSize / 2; i++) {
+            power[i] = re[i] * re[i] + im[i] * im[i];
+        }
+    }
+
+    /**
+     * Transform complex data in place.
+     * @param re The real parts.
+     * @param im The imaginary parts.
+     */
+    void transform(double[] re, double[] im) {
+        for(int i = 0; i < mSize; i++) {
+            int j = mReverse[i];
+            if(j > i) {
+                double t = re[i]; re[i] = re[j]; re[j] = t;
+                t = im[i]; im[i] = im[j]; im[j] = t;
+            }
+        }
+
+        for(int length = 2; length <= mSize; length <<= 1) {
+            int half = length >> 1;
+            int step = mSize / length;
+
+            for(int start = 0; start < mSize; start += length) {
+                for(int k = 0; k < half; k++) {
+                    double wr = mCos[k * step];
+                    double wi = mSin[k * step];
+
+                    int a = start + k;
+                    int b = a + half;
+
+                    double tr = re[b] * wr - im[b] * wi;
+                    double ti = re[b] * wi + im[b] * wr;
+
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+}
@@ -1,24 +1,48 @@
 package com.manywords.softworks.morse;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * MorseKey is the entry point into the Morse library.
- *
+ * <br /><br />
+ * Keys are thread-safe. Key events, deadlines, and speed changes are posted to a lock-free
+ * mailbox and applied in order by one thread at a time: whichever caller finds the key idle.
+ * {@link MorseListener}s are called from that thread, so a key may be fed from I/O threads
+ * without any external locking. A listener may feed events back into its own key; they are
+ * applied after the listener returns, and however many it posts, none is refused.
  */
-public class MorseKey {
+public class MorseKey implements MorseKeyListener {
     static final double FUDGE_FACTOR = 0.75;
 
-    private List<MorseSignal> mCurrentSignal = new ArrayList<>();
+    // Mailbox messages carry an event type in the low bits and a timestamp above them.
+    private static final int EVENT_BITS = 3;
+    private static final int EVENT_MASK = (1 << EVENT_BITS) - 1;
+    private static final int EVENT_DOWN = 0;
+    private static final int EVENT_UP = 1;
+    private static final int EVENT_CHAR_DEADLINE = 2;
+    private static final int EVENT_WORD_DEADLINE = 3;
+    private static final int EVENT_CONFIG = 4;
+    private static final int EVENT_CLOSE = 5;
 
-    private MorseSpeed mMarkSpeed = MorseSpeed.getSpeedForWPM(12.5);
-    private MorseSpeed mCharSpeed = MorseSpeed.getSpeedForWPM(12.5);
-    private MorseSpeed mWordSpeed = MorseSpeed.getSpeedForWPM(10);
+    private static final int MAILBOX_CAPACITY = 64;
 
-    private boolean mAdaptiveSpeed = true;
+    // Everything below marked 'writer' is only touched while handling mailbox messages.
+
+    // writer
+    private final MorseSignalBuffer mCurrentSignal = new MorseSignalBuffer();
+
+    // Written by the writer, readable from any thread
+    private volatile MorseSpeed mMarkSpeed = MorseSpeed.getSpeedForWPM(12.5);
+    private volatile MorseSpeed mCharSpeed = MorseSpeed.getSpeedForWPM(12.5);
+    private volatile MorseSpeed mWordSpeed = MorseSpeed.getSpeedForWPM(10);
+
+    private final AtomicReference<MorseSpeed.Group> mPendingSpeed = new AtomicReference<>();
+
+    private volatile boolean mAdaptiveSpeed = true;
+
+    // Adapt to the median of recent elements rather than their rolling average
+    private volatile boolean mRobustAdaptiveSpeed = false;
 
     // Don't change speed if the difference is very small (5%)
     private double mAdaptiveMinMove = 0.05;
@@ -29,26 +53,48 @@ public class MorseKey {
     // Dashes may be at most 1.25x slower than dots
     private double mAdaptiveDifferenceLimit = 1.25;
 
-    private MorseSpeed.Group mSpeedCeiling = new MorseSpeed.Group(MorseSpeed.getSpeedForWPM(25));
-    private MorseSpeed.Group mSpeedFloor = new MorseSpeed.Group(MorseSpeed.getSpeedForWPM(7.5));
+    private volatile MorseSpeed.Group mSpeedCeiling = new MorseSpeed.Group(MorseSpeed.getSpeedForWPM(25));
+    private volatile MorseSpeed.Group mSpeedFloor = new MorseSpeed.Group(MorseSpeed.getSpeedForWPM(7.5));
 
     private long mMaxInterwordLength = 3000;
 
+    // writer
     private MorseStats mStats = new MorseStats();
 
-    private Timer mCharTimer = new Timer();
-    private Timer mWordTimer = new Timer();
+    // writer
+    private final MorseFallbackDecoder mFallback = new MorseFallbackDecoder();
+    private volatile int mFallbackCacheCapacity = MorseFallbackCache.DEFAULT_CAPACITY;
+
+    // writer
+    private final MorseClassifier mClassifier = new MorseClassifier();
+
+    private final MorseClock mClock;
+    private final MorseClock.Deadline mCharDeadline;
+    private final MorseClock.Deadline mWordDeadline;
+    private final MorseMailbox mMailbox;
+
+    // writer: when the armed deadlines expire, or 0 if a key press has disarmed them
+    private long mCharDeadlineAt;
+    private long mWordDeadlineAt;
 
+    // writer
     private boolean mInWord;
     private boolean mInChar;
 
-    private long mLastKeyDown;
-    private long mLastKeyUp;
+    // writer: set once the key is closed, after which every event is ignored
+    private boolean mClosed;
+
+    private volatile long mLastKeyDown;
+    private volatile long mLastKeyUp;
+
+    // writer
     private String mLastChar = "";
     private MorseProsign mLastProsign;
 
     private MorseListener mListener;
 
+    private volatile MorseMetrics mMetrics = MorseMetrics.getShared();
+
     private boolean debug = false;
 
     /**
@@ -56,7 +102,39 @@ public class MorseKey {
      * @param listener A {@link MorseListener} to receive events from this Morse key.
      */
     public MorseKey(MorseListener listener) {
+        this(listener, MorseClock.SYSTEM);
+    }
+
+    /**
+     *
+     * @param listener A {@link MorseListener} to receive events from this Morse key.
+     * @param clock The {@link MorseClock} which times this key's input. Use a
+     *              {@link MorseVirtualClock} to decode recorded input faster than real time.
+     */
+    public MorseKey(MorseListener listener, MorseClock clock) {
         mListener = listener;
+        mClock = clock;
+        mClassifier.reset(mMarkSpeed, mCharSpeed);
+
+        mMailbox = new MorseMailbox(MAILBOX_CAPACITY, new MorseMailbox.Handler() {
+            @Override
+            public void handle(long message) {
+                handleEvent(message);
+            }
+        });
+
+        mCharDeadline = clock.newDeadline(new Runnable() {
+            @Override
+            public void run() {
+                post(EVENT_CHAR_DEADLINE, mClock.currentTimeMillis());
+            }
+        });
+        mWordDeadline = clock.newDeadline(new Runnable() {
+            @Override
+            public void run() {
+                post(EVENT_WORD_DEADLINE, mClock.currentTimeMillis());
+            }
+        });
     }
 
     /**
@@ -73,11 +151,19 @@ public class MorseKey {
      *
      */
     public void setSpeed(MorseSpeed.Group speed) {
-        mMarkSpeed = speed.markSpeed;
-        mCharSpeed = speed.charSpeed;
-        mWordSpeed = speed.wordSpeed;
+        mPendingSpeed.set(speed);
+        post(EVENT_CONFIG, 0);
+    }
 
-        capSpeeds();
+    /**
+     * Start from an estimated speed, as if this key had already received some signal at that
+     * speed, so that a stray element at the start does not drag its averages away. Only valid
+     * before the first key event.
+     * @param speed The estimated speed group.
+     */
+    void seed(MorseSpeed.Group speed) {
+        mStats.seed(speed);
+        setSpeed(speed);
     }
 
     /**
@@ -97,82 +183,206 @@ public class MorseKey {
         return mAdaptiveSpeed;
     }
 
+    /**
+     * Set robust adaptive speed mode.
+     * @param robust If true, adaptive speed follows the median length of recent elements, rather
+     *               than their rolling average, so that a few outliers do not move it.
+     */
+    public void setRobustAdaptiveSpeed(boolean robust) {
+        mRobustAdaptiveSpeed = robust;
+    }
+
+    public boolean getRobustAdaptiveSpeed() {
+        return mRobustAdaptiveSpeed;
+    }
+
+
+    /**
+     *
+     * @return The registry into which this key records its metrics.
+     */
+    public MorseMetrics getMetrics() { return mMetrics; }
+
+    /**
+     * Record this key's metrics somewhere other than {@link MorseMetrics#getShared()}.
+     * @param metrics The registry.
+     */
+    public void setMetrics(MorseMetrics metrics) {
+        mMetrics = metrics;
+    }
 
     public MorseSpeed.Group getSpeedCeiling() { return mSpeedCeiling; }
     public void setSpeedCeiling(MorseSpeed.Group ceiling) {
         mSpeedCeiling = ceiling;
-
-        capSpeeds();
+        post(EVENT_CONFIG, 0);
     }
 
     public MorseSpeed.Group getSpeedFloor() { return mSpeedFloor; }
     public void setSpeedFloor(MorseSpeed.Group floor) {
         mSpeedFloor = floor;
-
-        capSpeeds();
+        post(EVENT_CONFIG, 0);
     }
 
     /**
      * Call to signal that this Morse key has been depressed.
      */
     public void down() {
-        mLastKeyDown = System.currentTimeMillis();
+        down(mClock.currentTimeMillis());
+    }
+
+    /**
+     * Call to signal that this Morse key was depressed at the given time.
+     * @param timestamp The time of the key press in milliseconds, according to this key's
+     *                  {@link MorseClock}.
+     */
+    @Override
+    public void down(long timestamp) {
+        mClock.advanceTo(timestamp);
+        post(EVENT_DOWN, timestamp);
+    }
+
+    /**
+     * Call to signal that this Morse key has been released.
+     */
+    public void up() {
+        up(mClock.currentTimeMillis());
+    }
+
+    /**
+     * Call to signal that this Morse key was released at the given time.
+     * @param timestamp The time of the key release in milliseconds, according to this key's
+     *                  {@link MorseClock}.
+     */
+    @Override
+    public void up(long timestamp) {
+        mClock.advanceTo(timestamp);
+        post(EVENT_UP, timestamp);
+    }
+
+    private void post(int event, long timestamp) {
+        mMailbox.post((timestamp << EVENT_BITS) | event);
+    }
+
+    private void handleEvent(long message) {
+        long timestamp = message >>> EVENT_BITS;
+        if(mClosed) return;
+
+        switch((int) (message & EVENT_MASK)) {
+            case EVENT_DOWN:
+                handleDown(timestamp);
+                break;
+            case EVENT_UP:
+                handleUp(timestamp);
+                break;
+            case EVENT_CHAR_DEADLINE:
+                // Ignore deadlines which fired before a key press disarmed them
+                if(mCharDeadlineAt > 0 && timestamp >= mCharDeadlineAt) {
+                    mMetrics.deadlineLateness.record(timestamp - mCharDeadlineAt);
+                    mCharDeadlineAt = 0;
+                    handleCharDone();
+                }
+                break;
+            case EVENT_WORD_DEADLINE:
+                if(mWordDeadlineAt > 0 && timestamp >= mWordDeadlineAt) {
+                    mMetrics.deadlineLateness.record(timestamp - mWordDeadlineAt);
+                    mWordDeadlineAt = 0;
+                    handleWordDone();
+                }
+                break;
+            case EVENT_CONFIG:
+                MorseSpeed.Group speed = mPendingSpeed.getAndSet(null);
+                if(speed != null) {
+                    mMarkSpeed = speed.markSpeed;
+                    mCharSpeed = speed.charSpeed;
+                    mWordSpeed = speed.wordSpeed;
+                }
+
+                capSpeeds();
+                if(speed != null) mClassifier.reset(mMarkSpeed, mCharSpeed);
+                break;
+            case EVENT_CLOSE:
+                mClosed = true;
+                mCharDeadlineAt = mWordDeadlineAt = 0;
+                mCharDeadline.cancel();
+                mWordDeadline.cancel();
+                break;
+        }
+    }
+
+    private void handleDown(long timestamp) {
+        mLastKeyDown = timestamp;
         long interval = mLastKeyDown - mLastKeyUp;
 
         if(mLastKeyUp > 0) {
             if (mCurrentSignal.size() > 0) {
                 mStats.addMarkSilence(interval);
+                mClassifier.addSilence(interval);
             }
             else if (!mInChar && mInWord && !mLastChar.isEmpty()) {
                 mStats.addCharSilence(interval);
+                mClassifier.addSilence(interval);
             }
             else if (!mInChar && !mInWord && (interval) < getMaxInterwordLength()) {
                 mStats.addWordSilence(interval);
 
                 if(mAdaptiveSpeed && !mLastChar.isEmpty()) {
+                    MorseSpeed wordSpeed = mWordSpeed;
                     adaptWordSpeed();
+                    if(mWordSpeed.dotMsec != wordSpeed.dotMsec) mMetrics.speedChanges.increment();
                 }
             }
 
             if(interval < getMaxInterwordLength()) {
-                mCurrentSignal.add(new MorseSignal(false, interval));
+                mCurrentSignal.add(false, interval);
             }
         }
 
         mInChar = true;
         mInWord = true;
 
-        mCharTimer.cancel();
-        mWordTimer.cancel();
+        mCharDeadlineAt = mWordDeadlineAt = 0;
+        mCharDeadline.cancel();
+        mWordDeadline.cancel();
     }
 
-    /**
-     * Call to signal that this Morse key has been released.
-     */
-    public void up() {
-        mLastKeyUp = System.currentTimeMillis();
+    private void handleUp(long timestamp) {
+        mLastKeyUp = timestamp;
         long interval = mLastKeyUp - mLastKeyDown;
 
-        mCurrentSignal.add(new MorseSignal(true, interval));
+        mCurrentSignal.add(true, interval);
+        mClassifier.addMark(interval);
 
-        mCharTimer = new Timer();
-        mWordTimer = new Timer();
+        // the char deadline is 75% of the char silence length, so we have room to speed up,
+        // unless we have learned where this sender's characters end
+        double charThreshold = mClassifier.isWarm() ? mClassifier.getCharThreshold() : mCharSpeed.dashMsec * FUDGE_FACTOR;
+        mCharDeadlineAt = mLastKeyUp + (long) charThreshold;
+        mCharDeadline.schedule(mCharDeadlineAt);
 
-        // the char timer is 75% of the char silence length, so we have room to speed up
-        mCharTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                handleCharDone();
-            }
-        }, (long) (mCharSpeed.dashMsec * FUDGE_FACTOR));
+        // the word deadline is 75% of the word silence length, so we have room to speed up
+        mWordDeadlineAt = mLastKeyUp + (long) (mWordSpeed.dotMsec * MorseConstants.SPACE_LENGTH * FUDGE_FACTOR);
+        mWordDeadline.schedule(mWordDeadlineAt);
+    }
 
-        // the word timer is 75% of the word silence length, so we have room to speed up
-        mWordTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                handleWordDone();
-            }
-        }, (long) (mWordSpeed.dotMsec * MorseConstants.SPACE_LENGTH * FUDGE_FACTOR));
+    /**
+     *
+     * @return The clock which times this key's input.
+     */
+    public MorseClock getClock() { return mClock; }
+
+    /**
+     *
+     * @return The time of the most recent key event, or 0 if there has been none.
+     */
+    long getLastEventTime() {
+        return Math.max(mLastKeyDown, mLastKeyUp);
+    }
+
+    /**
+     * Discard any character in progress and cancel pending deadlines. Events posted after this
+     * are ignored, even if they race with it, so nothing can re-arm the key's deadlines.
+     */
+    void close() {
+        post(EVENT_CLOSE, 0);
     }
 
     /**
@@ -202,46 +412,102 @@ public class MorseKey {
      */
     public MorseSpeed getWordSpeed() { return mWordSpeed; }
 
+    /**
+     *
+     * @return The number of characters for which the fallback decoder reused the speed it
+     * estimated for an earlier signal of the same shape.
+     */
+    public long getFallbackCacheHits() { return mFallback.getCache().getHits(); }
+
+    /**
+     *
+     * @return The number of characters for which the fallback decoder had to estimate a speed.
+     */
+    public long getFallbackCacheMisses() { return mFallback.getCache().getMisses(); }
+
+    /**
+     *
+     * @return The number of shapes the fallback decoder has forgotten to make room for others.
+     */
+    public long getFallbackCacheEvictions() { return mFallback.getCache().getEvictions(); }
+
+    /**
+     * Set how many signal shapes the fallback decoder remembers the speeds of. The cache is only
+     * allocated when the fallback decoder first runs, and a change forgets what it holds.
+     * @param capacity The most shapes to remember, or 0 to cluster every signal afresh. By
+     *                 default, {@value MorseFallbackCache#DEFAULT_CAPACITY}.
+     */
+    public void setFallbackCacheCapacity(int capacity) {
+        if(capacity < 0) throw new IllegalArgumentException("Capacity may not be negative");
+        mFallbackCacheCapacity = capacity;
+    }
+
+    public int getFallbackCacheCapacity() { return mFallbackCacheCapacity; }
+
     private void handleCharDone() {
-        List<MorseSignal> dotDashCopy = new ArrayList<>(mCurrentSignal);
-        int[] signalPattern = MorseSignal.toDotDashArray(dotDashCopy, mMarkSpeed, mStats);
+        MorseMetrics metrics = mMetrics;
+        long latency = mClock.currentTimeMillis() - mLastKeyUp;
+        int delivered = 0;
 
-        String character = MorseConstants.lookup(signalPattern);
-        MorseProsign prosign = MorseConstants.lookupProsign(signalPattern);
-        mInChar = false;
-        mLastChar = character;
+        double dashThreshold = mClassifier.isWarm() ? mClassifier.getDashThreshold() : mMarkSpeed.dashMsec * FUDGE_FACTOR;
+        int signalPattern = MorseSignal.toPackedCode(mCurrentSignal, 0, mCurrentSignal.size(), dashThreshold, mStats);
 
-        List<MorseSignal> fallbackCopy = new ArrayList<>(mCurrentSignal);
-        MorseFallbackDecoder fallback = new MorseFallbackDecoder(fallbackCopy, getMarkSpeed(), mStats, character, prosign);
-        fallback.setDebug(debug);
-        List<MorseCharacter> fallbackDecoded = fallback.decode();
+        MorseCharacter character = MorseConstants.lookupCharacter(signalPattern);
+        MorseCharacter prosign = MorseConstants.lookupProsignCharacter(signalPattern);
+        mInChar = false;
+        mLastChar = character != null ? character.character : "";
+
+        // Once the classifier has learned this sender, only characters it could not decode need
+        // the fallback decoder
+        List<MorseCharacter> fallbackDecoded = null;
+        if(!mClassifier.isWarm() || (character == null && prosign == null)) {
+            mFallback.setDebug(debug);
+            mFallback.setMetrics(metrics);
+            mFallback.setCacheCapacity(mFallbackCacheCapacity);
+            fallbackDecoded = mFallback.decode(mCurrentSignal, getMarkSpeed(), mStats,
+                    mLastChar, prosign != null ? prosign.prosign : null);
+        }
 
         if(fallbackDecoded != null && fallbackDecoded.size() > 0) {
+            metrics.fallbackOverrides.increment();
+            delivered = fallbackDecoded.size();
             for(MorseCharacter c : fallbackDecoded)
                 mListener.morseReceived(c);
 
             // TODO: limit to a maxChange change (if needed)
-            mMarkSpeed = fallback.getEstimatedMarkSpeed();
-            mCharSpeed = fallback.getEstimatedCharSpeed();
-            mWordSpeed = fallback.getEstimatedWordSpeed();
+            mMarkSpeed = mFallback.getEstimatedMarkSpeed();
+            mCharSpeed = mFallback.getEstimatedCharSpeed();
+            mWordSpeed = mFallback.getEstimatedWordSpeed();
 
             capSpeeds();
+
+            // The classifier was wrong too, so start it again from the new speed
+            mClassifier.reset(mMarkSpeed, mCharSpeed);
         }
-        else if(character.isEmpty()) {
-            MorseProsign sign = MorseConstants.lookupProsign(signalPattern);
-            if(sign != null) {
+        else if(character == null) {
+            if(prosign != null) {
                 mLastChar = "prosign";
-                mLastProsign = sign;
-                mListener.morseReceived(new MorseCharacter(sign));
+                mLastProsign = prosign.prosign;
+                delivered = 1;
+                mListener.morseReceived(prosign);
             }
         }
         else {
-            mListener.morseReceived(new MorseCharacter(character));
+            delivered = 1;
+            mListener.morseReceived(character);
+        }
+
+        if(delivered > 0) {
+            metrics.charactersDecoded.add(delivered);
+            metrics.decodeLatency.record(latency);
         }
 
         if(mAdaptiveSpeed && !mLastChar.isEmpty()) {
+            MorseSpeed markSpeed = mMarkSpeed;
+            MorseSpeed charSpeed = mCharSpeed;
             adaptMarkSpeed();
             adaptCharSpeed();
+            if(mMarkSpeed.dotMsec != markSpeed.dotMsec || mCharSpeed.dotMsec != charSpeed.dotMsec) metrics.speedChanges.increment();
         }
 
         mCurrentSignal.clear();
@@ -255,7 +521,8 @@ public class MorseKey {
             }
         }
 
-        mListener.morseReceived(new MorseCharacter(" "));
+        mMetrics.charactersDecoded.increment();
+        mListener.morseReceived(MorseCharacter.SPACE);
     }
 
 
@@ -263,9 +530,9 @@ public class MorseKey {
         if(!mStats.canAdapt()) return;
 
         // --- be adaptive in symbols ---
-        double intermarkLength = mStats.getMarkAverage();
-        double dotLength = mStats.getDotAverage();
-        double dashLength = mStats.getDashAverage() / 3d;
+        double intermarkLength = mRobustAdaptiveSpeed ? mStats.getMarkMedian() : mStats.getMarkAverage();
+        double dotLength = mRobustAdaptiveSpeed ? mStats.getDotMedian() : mStats.getDotAverage();
+        double dashLength = (mRobustAdaptiveSpeed ? mStats.getDashMedian() : mStats.getDashAverage()) / 3d;
 
         double markAverage = (intermarkLength + dotLength + dashLength) / 3;
 
@@ -299,7 +566,7 @@ public class MorseKey {
             mCharSpeed = new MorseSpeed(mMarkSpeed);
         }
         else {
-            double charSilenceLength = mStats.getCharAverage() / 3;
+            double charSilenceLength = (mRobustAdaptiveSpeed ? mStats.getCharMedian() : mStats.getCharAverage()) / 3;
             double speedDifference = charSilenceLength - mCharSpeed.dotMsec;
 
             // Only adjust if the difference is greater than the fudge factor
@@ -331,7 +598,7 @@ public class MorseKey {
             mWordSpeed = new MorseSpeed(speed);
         }
         else {
-            double wordSilenceLength = mStats.getWordAverage() / 7;
+            double wordSilenceLength = (mRobustAdaptiveSpeed ? mStats.getWordMedian() : mStats.getWordAverage()) / 7;
             if (wordSilenceLength == 0) return;
 
             double speedDifference = wordSilenceLength - mWordSpeed.dotMsec;
@@ -372,6 +639,15 @@ public class MorseKey {
         return (long) Math.max(mMaxInterwordLength, mWordSpeed.dotMsec * 7 * 1.5);
     }
 
+    /**
+     *
+     * @return The shortest silence which this key treats as a break in transmission at any
+     * speed within its floor: it ends the word before it, and is not counted in the stats.
+     */
+    long getSplitSilence() {
+        return (long) Math.max(mMaxInterwordLength, mSpeedFloor.wordSpeed.dotMsec * 7 * 1.5);
+    }
+
     public void setDebug(boolean debug) {
         this.debug = debug;
     }
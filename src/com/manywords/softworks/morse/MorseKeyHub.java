@@ -0,0 +1,313 @@
+package com.manywords.softworks.morse;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A MorseKeyHub hosts many {@link MorseKey} sessions, one per connected operator, identified by
+ * a client-chosen session ID.
+ * <br /><br />
+ * All of a hub's sessions share one {@link MorseScheduler} thread for their char and word
+ * deadlines, so the number of threads does not grow with the number of sessions. Sessions are
+ * opened on demand and closed or evicted when idle; both are cheap, and safe to call from any
+ * thread.
+ * <br /><br />
+ * Decoded characters from every session are delivered to a single {@link Listener}, on
+ * whichever thread is handling that session's key events at the time: the thread which called
+ * {@link #down(Object)} or {@link #up(Object)}, or the hub's scheduler thread when a deadline
+ * ends a character or word. Each session's characters arrive one at a time and in order, but
+ * different sessions may deliver at once.
+ * <br /><br />
+ * A hub's scheduler thread runs until {@link #shutdown()}.
+ *
+ * @param <K> The type of session ID.
+ */
+public class MorseKeyHub<K> {
+    /**
+     * A callback by which clients receive characters decoded by a hub's sessions.
+     *
+     * @param <K> The type of session ID.
+     */
+    public interface Listener<K> {
+        /**
+         * A session has received a Morse character.
+         * @param session The ID of the session.
+         * @param c The received character.
+         */
+        void morseReceived(K session, MorseCharacter c);
+    }
+
+    private final Listener<K> mListener;
+    private final MorseScheduler mScheduler;
+    private final MorseClock mClock;
+    private final ConcurrentHashMap<K, Session> mSessions = new ConcurrentHashMap<>();
+    private volatile boolean mShutdown;
+    private volatile int mFallbackCacheCapacity = MorseFallbackCache.DEFAULT_CAPACITY;
+
+    private final LongAdder mSessionsOpened = new LongAdder();
+    private final LongAdder mSessionsClosed = new LongAdder();
+    private final LongAdder mSessionsEvicted = new LongAdder();
+    private final LongAdder mKeyEvents = new LongAdder();
+    private final LongAdder mCharactersReceived = new LongAdder();
+
+    /**
+     *
+     * @param listener A {@link Listener} to receive characters from every session.
+     */
+    public MorseKeyHub(Listener<K> listener) {
+        mListener = listener;
+        mScheduler = new MorseScheduler("MorseKeyHub", MorseScheduler.DEFAULT_TICK_MILLIS, MorseScheduler.DEFAULT_WHEEL_SIZE);
+        mClock = new MorseSystemClock(mScheduler);
+    }
+
+    /**
+     * Get the key for a session, opening the session if it does not exist.
+     * @param session The session ID.
+     * @return The session's key, which clients may configure as usual.
+     */
+    public MorseKey open(final K session) {
+        return openSession(session).key;
+    }
+
+    private Session openSession(K session) {
+        if(mShutdown) throw new IllegalStateException("Hub has been shut down");
+
+        Session s = mSessions.get(session);
+        if(s != null) return s;
+
+        Session created = new Session(session);
+        s = mSessions.putIfAbsent(session, created);
+        if(s != null) return s;
+
+        mSessionsOpened.increment();
+        return created;
+    }
+
+    /**
+     * Set how many signal shapes the fallback decoder of each session opened from now on
+     * remembers. Each cache is allocated only when its session's key first falls back, but with
+     * many sessions a smaller cache, or none, may save memory.
+     * See {@link MorseKey#setFallbackCacheCapacity(int)}.
+     * @param capacity The most shapes to remember per session, or 0 for none.
+     */
+    public void setFallbackCacheCapacity(int capacity) {
+        if(capacity < 0) throw new IllegalArgumentException("Capacity may not be negative");
+        mFallbackCacheCapacity = capacity;
+    }
+
+    public int getFallbackCacheCapacity() {
+        return mFallbackCacheCapacity;
+    }
+
+    /**
+     * Get an open session, opening it again if it was closed since it was looked up.
+     */
+    private MorseKey openKey(K session) {
+        while(true) {
+            Session s = openSession(session);
+            if(!s.closed) return s.key;
+        }
+    }
+
+    /**
+     *
+     * @param session The session ID.
+     * @return The session's key, or null if the session is not open.
+     */
+    public MorseKey get(K session) {
+        Session s = mSessions.get(session);
+        return s != null ? s.key : null;
+    }
+
+    /**
+     * Signal that a session's key has been depressed, opening the session if needed.
+     * @param session The session ID.
+     */
+    public void down(K session) {
+        mKeyEvents.increment();
+        openKey(session).down();
+    }
+
+    /**
+     * Signal that a session's key was depressed at the given time, opening the session if needed.
+     * @param session The session ID.
+     * @param timestamp The time of the key press, in {@link System#currentTimeMillis()} time.
+     */
+    public void down(K session, long timestamp) {
+        mKeyEvents.increment();
+        openKey(session).down(timestamp);
+    }
+
+    /**
+     * Signal that a session's key has been released, opening the session if needed.
+     * @param session The session ID.
+     */
+    public void up(K session) {
+        mKeyEvents.increment();
+        openKey(session).up();
+    }
+
+    /**
+     * Signal that a session's key was released at the given time, opening the session if needed.
+     * @param session The session ID.
+     * @param timestamp The time of the key release, in {@link System#currentTimeMillis()} time.
+     */
+    public void up(K session, long timestamp) {
+        mKeyEvents.increment();
+        openKey(session).up(timestamp);
+    }
+
+    /**
+     * Close a session. Any character in progress is discarded, as are key events which race with
+     * closing; later events open a new session.
+     * @param session The session ID.
+     * @return True if the session was open.
+     */
+    public boolean close(K session) {
+        Session s = mSessions.remove(session);
+        if(s == null) return false;
+
+        s.close();
+        mSessionsClosed.increment();
+        return true;
+    }
+
+    /**
+     * Close every session and stop the hub's scheduler thread. The hub may not be used
+     * afterward.
+     */
+    public void shutdown() {
+        mShutdown = true;
+
+        Iterator<Session> iterator = mSessions.values().iterator();
+        while(iterator.hasNext()) {
+            Session s = iterator.next();
+            if(mSessions.remove(s.id, s)) {
+                s.close();
+                mSessionsClosed.increment();
+            }
+        }
+
+        mScheduler.shutdown();
+    }
+
+    /**
+     *
+     * @return True if {@link #shutdown()} has been called.
+     */
+    public boolean isShutdown() {
+        return mShutdown;
+    }
+
+    /**
+     * Close every session which has had no key events for the given length of time.
+     * @param idleMillis The idle time in milliseconds.
+     * @return The number of sessions evicted.
+     */
+    public int evictIdle(long idleMillis) {
+        long cutoff = mClock.currentTimeMillis() - idleMillis;
+        int evicted = 0;
+
+        Iterator<Map.Entry<K, Session>> iterator = mSessions.entrySet().iterator();
+        while(iterator.hasNext()) {
+            Session s = iterator.next().getValue();
+            if(s.getLastActivity() < cutoff && mSessions.remove(s.id, s)) {
+                s.close();
+                evicted++;
+            }
+        }
+
+        mSessionsEvicted.add(evicted);
+        return evicted;
+    }
+
+    /**
+     *
+     * @return The number of open sessions.
+     */
+    public int getSessionCount() {
+        return mSessions.size();
+    }
+
+    /**
+     *
+     * @return The number of sessions opened over the life of the hub.
+     */
+    public long getSessionsOpened() {
+        return mSessionsOpened.sum();
+    }
+
+    /**
+     *
+     * @return The number of sessions closed by {@link #close(Object)}.
+     */
+    public long getSessionsClosed() {
+        return mSessionsClosed.sum();
+    }
+
+    /**
+     *
+     * @return The number of sessions closed by {@link #evictIdle(long)}.
+     */
+    public long getSessionsEvicted() {
+        return mSessionsEvicted.sum();
+    }
+
+    /**
+     *
+     * @return The number of key events given to the hub.
+     */
+    public long getKeyEvents() {
+        return mKeyEvents.sum();
+    }
+
+    /**
+     *
+     * @return The number of characters, including spaces, received by all sessions.
+     */
+    public long getCharactersReceived() {
+        return mCharactersReceived.sum();
+    }
+
+    /**
+     *
+     * @return The number of deadlines waiting on the hub's scheduler.
+     */
+    public int getPendingDeadlines() {
+        return mScheduler.getPendingCount();
+    }
+
+    private class Session implements MorseListener {
+        final K id;
+        final MorseKey key;
+        final long created;
+
+        // Set before the key is closed, so that hub events which looked the session up just
+        // before it was removed can tell
+        volatile boolean closed;
+
+        Session(K id) {
+            this.id = id;
+            this.key = new MorseKey(this, mClock);
+            this.key.setFallbackCacheCapacity(mFallbackCacheCapacity);
+            this.created = mClock.currentTimeMillis();
+        }
+
+        void close() {
+            closed = true;
+            key.close();
+        }
+
+        long getLastActivity() {
+            return Math.max(created, key.getLastEventTime());
+        }
+
+        @Override
+        public void morseReceived(MorseCharacter c) {
+            mCharactersReceived.increment();
+            mListener.morseReceived(id, c);
+        }
+    }
+}
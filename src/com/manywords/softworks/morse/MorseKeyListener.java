@@ -0,0 +1,19 @@
+package com.manywords.softworks.morse;
+
+/**
+ * A callback by which clients receive timestamped key presses and releases, from a source such
+ * as a {@link MorseToneDetector}. {@link MorseKey} is one.
+ */
+public interface MorseKeyListener {
+    /**
+     * The key was depressed.
+     * @param timestamp The time of the key press in milliseconds.
+     */
+    public void down(long timestamp);
+
+    /**
+     * The key was released.
+     * @param timestamp The time of the key release in milliseconds.
+     */
+    public void up(long timestamp);
+}
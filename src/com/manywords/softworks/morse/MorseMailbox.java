@@ -0,0 +1,177 @@
+package com.manywords.softworks.morse;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A bounded, lock-free mailbox of messages packed into longs, with a single writer at a time.
+ * <br /><br />
+ * Any thread may post a message. Messages are handled in the order they were posted, one at a
+ * time, by whichever posting thread finds the mailbox idle; other posters return as soon as their
+ * message is queued. The handler therefore never runs on two threads at once, and everything it
+ * touches is safely published from one handling thread to the next.
+ * <br /><br />
+ * If the mailbox is full, posters help drain it, or wait for the current writer to do so. The
+ * handler itself may post too: what it posts to a full mailbox is kept aside, without limit, and
+ * handled once everything posted before it has been.
+ */
+class MorseMailbox {
+    /**
+     * Handles messages taken from a mailbox.
+     */
+    interface Handler {
+        void handle(long message);
+    }
+
+    private final Handler mHandler;
+    private final long[] mMessages;
+    private final AtomicLongArray mSequence;
+    private final int mMask;
+
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicReference<Thread> mWriter = new AtomicReference<>();
+
+    // Only touched by the writer; published between writers by mWriter
+    private long mHead;
+
+    // Messages the handler posted while the mailbox was full, each with the tail position at the
+    // time, so they are handled in order with the messages around them. Writer-only.
+    private long[] mSpilled = new long[0];
+    private long[] mSpilledPositions = new long[0];
+    private int mSpilledHead;
+    private int mSpilledCount;
+
+    /**
+     *
+     * @param capacity The number of messages the mailbox can hold, rounded up to a power of two.
+     * @param handler The handler for posted messages.
+     */
+    MorseMailbox(int capacity, Handler handler) {
+        int size = Integer.highestOneBit(Math.max(2, capacity));
+        if(size < capacity) size <<= 1;
+
+        mHandler = handler;
+        mMessages = new long[size];
+        mSequence = new AtomicLongArray(size);
+        mMask = size - 1;
+
+        for(int i = 0; i < size; i++) {
+            mSequence.set(i, i);
+        }
+    }
+
+    /**
+     * Post a message, handling it (and anything else waiting) on this thread if no other thread
+     * is doing so.
+     * @param message The message.
+     */
+    void post(long message) {
+        while(!offer(message)) {
+            if(mWriter.get() == Thread.currentThread()) {
+                // Waiting would deadlock, since only we can make room
+                spill(message);
+                return;
+            }
+
+            drain();
+            Thread.yield();
+        }
+
+        drain();
+    }
+
+    /**
+     *
+     * @return True if the calling thread is currently handling messages.
+     */
+    boolean isWriter() {
+        return mWriter.get() == Thread.currentThread();
+    }
+
+    private boolean offer(long message) {
+        long position = mTail.get();
+        while(true) {
+            int index = (int) (position & mMask);
+            long difference = mSequence.get(index) - position;
+
+            if(difference == 0) {
+                if(mTail.compareAndSet(position, position + 1)) {
+                    mMessages[index] = message;
+                    mSequence.set(index, position + 1);
+                    return true;
+                }
+            }
+            else if(difference < 0) {
+                // Full: the slot still holds a message from the previous lap
+                return false;
+            }
+
+            position = mTail.get();
+        }
+    }
+
+    private void spill(long message) {
+        if(mSpilledCount == mSpilled.length) {
+            int size = Math.max(16, mSpilled.length * 2);
+            long[] spilled = new long[size];
+            long[] positions = new long[size];
+            for(int i = 0; i < mSpilledCount; i++) {
+                int from = (mSpilledHead + i) % mSpilled.length;
+                spilled[i] = mSpilled[from];
+                positions[i] = mSpilledPositions[from];
+            }
+            mSpilled = spilled;
+            mSpilledPositions = positions;
+            mSpilledHead = 0;
+        }
+
+        int index = (mSpilledHead + mSpilledCount) % mSpilled.length;
+        mSpilled[index] = message;
+        mSpilledPositions[index] = mTail.get();
+        mSpilledCount++;
+    }
+
+    private boolean spilledReady() {
+        return mSpilledCount > 0 && mSpilledPositions[mSpilledHead] <= mHead;
+    }
+
+    private void drain() {
+        Thread current = Thread.currentThread();
+
+        long head;
+        do {
+            if(!mWriter.compareAndSet(null, current)) return;
+
+            try {
+                while(true) {
+                    long message;
+                    if(spilledReady()) {
+                        message = mSpilled[mSpilledHead];
+                        mSpilledHead = (mSpilledHead + 1) % mSpilled.length;
+                        mSpilledCount--;
+                    }
+                    else {
+                        int index = (int) (mHead & mMask);
+                        if(mSequence.get(index) != mHead + 1) break;
+
+                        message = mMessages[index];
+                        mSequence.set(index, mHead + mMask + 1);
+                        mHead++;
+                    }
+
+                    mHandler.handle(message);
+                }
+            }
+            finally {
+                // Once we let go, mHead belongs to the next writer
+                head = mHead;
+                mWriter.set(null);
+            }
+
+            // A poster may have published after we stopped looking, and found us still writing.
+            // Spilled messages need no check: one is only left behind waiting for a message that
+            // is still being posted, and that poster drains after it publishes.
+        } while(mSequence.get((int) (head & mMask)) == head + 1);
+    }
+}
@@ -0,0 +1,211 @@
+package com.manywords.softworks.morse;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms describing how keys decode and profiles encode.
+ * <br /><br />
+ * Every metric is a {@link LongAdder}, or a fixed set of them, so recording from many keys at
+ * once is cheap and never contends. Keys record into the shared registry unless given another
+ * with {@link MorseKey#setMetrics(MorseMetrics)}; signal generators always record into the
+ * shared registry, a batch at a time.
+ * <br /><br />
+ * A registry can be read through JMX, after {@link #registerMBean(String)}, or dumped in the
+ * Prometheus text format by {@link #writePrometheusText(Appendable)}.
+ */
+public class MorseMetrics implements MorseMetricsMXBean {
+    private static final long[] DECODE_LATENCY_BUCKETS = {25, 50, 100, 250, 500, 750, 1000, 1500, 2500, 5000, 10000};
+    private static final long[] LATENESS_BUCKETS = {0, 1, 2, 5, 10, 25, 50, 100, 250, 1000};
+
+    private static MorseMetrics sShared;
+
+    /**
+     *
+     * @return The registry used by keys and signal generators unless told otherwise.
+     */
+    public static synchronized MorseMetrics getShared() {
+        if(sShared == null) sShared = new MorseMetrics();
+        return sShared;
+    }
+
+    final LongAdder charactersDecoded = new LongAdder();
+    final LongAdder fallbackInvocations = new LongAdder();
+    final LongAdder fallbackCacheHits = new LongAdder();
+    final LongAdder fallbackCacheMisses = new LongAdder();
+    final LongAdder fallbackCacheEvictions = new LongAdder();
+    final LongAdder fallbackOverrides = new LongAdder();
+    final LongAdder speedChanges = new LongAdder();
+    final LongAdder charactersDropped = new LongAdder();
+    final LongAdder charactersEncoded = new LongAdder();
+    final LongAdder signalsEncoded = new LongAdder();
+
+    // From the last key release of a character to its delivery
+    final Histogram decodeLatency = new Histogram(DECODE_LATENCY_BUCKETS);
+
+    // From when a char or word deadline was due to when the key handled it
+    final Histogram deadlineLateness = new Histogram(LATENESS_BUCKETS);
+
+    /**
+     * Register this registry with the platform MBean server.
+     * @param name The value of the name key in the object name, to tell registries apart.
+     * @return The object name under which the registry was registered.
+     * @throws JMException If the name is invalid or already registered.
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName("com.manywords.softworks.morse:type=MorseMetrics,name=" + ObjectName.quote(name));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(this, objectName);
+        return objectName;
+    }
+
+    @Override public long getCharactersDecoded() { return charactersDecoded.sum(); }
+    @Override public long getFallbackInvocations() { return fallbackInvocations.sum(); }
+    @Override public long getFallbackCacheHits() { return fallbackCacheHits.sum(); }
+    @Override public long getFallbackCacheMisses() { return fallbackCacheMisses.sum(); }
+    @Override public long getFallbackCacheEvictions() { return fallbackCacheEvictions.sum(); }
+    @Override public long getFallbackOverrides() { return fallbackOverrides.sum(); }
+    @Override public long getSpeedChanges() { return speedChanges.sum(); }
+    @Override public long getCharactersDropped() { return charactersDropped.sum(); }
+    @Override public long getCharactersEncoded() { return charactersEncoded.sum(); }
+    @Override public long getSignalsEncoded() { return signalsEncoded.sum(); }
+
+    @Override public long getDecodeLatencyCount() { return decodeLatency.getCount(); }
+    @Override public double getDecodeLatencyMeanMsec() { return decodeLatency.getMean(); }
+    @Override public long getDecodeLatencyP50Msec() { return decodeLatency.getPercentile(0.5); }
+    @Override public long getDecodeLatencyP99Msec() { return decodeLatency.getPercentile(0.99); }
+
+    @Override public long getDeadlineLatenessCount() { return deadlineLateness.getCount(); }
+    @Override public double getDeadlineLatenessMeanMsec() { return deadlineLateness.getMean(); }
+    @Override public long getDeadlineLatenessP99Msec() { return deadlineLateness.getPercentile(0.99); }
+
+    @Override
+    public String getPrometheusText() {
+        StringBuilder out = new StringBuilder();
+        try {
+            writePrometheusText(out);
+        }
+        catch(IOException e) {
+            // StringBuilder does not throw
+            throw new AssertionError(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Write every metric in the Prometheus text exposition format. Latencies are written in
+     * seconds, as Prometheus expects.
+     * @param out Where to write.
+     * @throws IOException If out throws.
+     */
+    public void writePrometheusText(Appendable out) throws IOException {
+        writeCounter(out, "morse_characters_decoded_total", "Characters delivered to listeners.", charactersDecoded);
+        writeCounter(out, "morse_fallback_invocations_total", "Characters given to the fallback decoder.", fallbackInvocations);
+        writeCounter(out, "morse_fallback_cache_hits_total", "Fallback decodes which reused a cached speed estimate.", fallbackCacheHits);
+        writeCounter(out, "morse_fallback_cache_misses_total", "Fallback decodes which had to estimate a speed.", fallbackCacheMisses);
+        writeCounter(out, "morse_fallback_cache_evictions_total", "Cached speed estimates forgotten to make room for others.", fallbackCacheEvictions);
+        writeCounter(out, "morse_fallback_overrides_total", "Characters for which the fallback decode replaced the ordinary decode.", fallbackOverrides);
+        writeCounter(out, "morse_speed_changes_total", "Changes of speed made by adaptive speed.", speedChanges);
+        writeCounter(out, "morse_characters_dropped_total", "Characters dropped because an asynchronous listener fell behind.", charactersDropped);
+        writeCounter(out, "morse_characters_encoded_total", "Characters turned into signal.", charactersEncoded);
+        writeCounter(out, "morse_signals_encoded_total", "Signal elements generated.", signalsEncoded);
+        writeHistogram(out, "morse_decode_latency_seconds", "Time from the last key release of a character to its delivery.", decodeLatency);
+        writeHistogram(out, "morse_deadline_lateness_seconds", "Time from when a char or word deadline was due to when it was handled.", deadlineLateness);
+    }
+
+    private static void writeCounter(Appendable out, String name, String help, LongAdder counter) throws IOException {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(Long.toString(counter.sum())).append('\n');
+    }
+
+    private static void writeHistogram(Appendable out, String name, String help, Histogram histogram) throws IOException {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+
+        // Read every bucket once, so the cumulative counts agree with the count
+        long[] counts = histogram.getBucketCounts();
+        long cumulative = 0;
+        for(int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            String bound = i < histogram.mBounds.length ? Double.toString(histogram.mBounds[i] / 1000.0) : "+Inf";
+            out.append(name).append("_bucket{le=\"").append(bound).append("\"} ").append(Long.toString(cumulative)).append('\n');
+        }
+        out.append(name).append("_sum ").append(Double.toString(histogram.mSum.sum() / 1000.0)).append('\n');
+        out.append(name).append("_count ").append(Long.toString(cumulative)).append('\n');
+    }
+
+    /**
+     * Counts of values in fixed buckets, each holding the values no greater than its upper bound
+     * and greater than the bound before it. The last bucket holds everything else.
+     */
+    static class Histogram {
+        private final long[] mBounds;
+        private final LongAdder[] mBuckets;
+        private final LongAdder mSum = new LongAdder();
+
+        Histogram(long[] bounds) {
+            mBounds = bounds;
+            mBuckets = new LongAdder[bounds.length + 1];
+            for(int i = 0; i < mBuckets.length; i++) {
+                mBuckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long value) {
+            // Few enough buckets that a linear search beats a binary one
+            int i = 0;
+            while(i < mBounds.length && value > mBounds[i]) i++;
+
+            mBuckets[i].increment();
+            mSum.add(value);
+        }
+
+        long[] getBucketCounts() {
+            long[] counts = new long[mBuckets.length];
+            for(int i = 0; i < counts.length; i++) {
+                counts[i] = mBuckets[i].sum();
+            }
+            return counts;
+        }
+
+        long getCount() {
+            long count = 0;
+            for(LongAdder bucket : mBuckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        double getMean() {
+            long count = getCount();
+            return count == 0 ? 0 : (double) mSum.sum() / count;
+        }
+
+        /**
+         *
+         * @return The upper bound of the bucket holding a percentile, or Long.MAX_VALUE if it is
+         * past the last bound, or 0 if nothing has been recorded.
+         */
+        long getPercentile(double fraction) {
+            long[] counts = getBucketCounts();
+            long total = 0;
+            for(long count : counts) {
+                total += count;
+            }
+            if(total == 0) return 0;
+
+            long rank = (long) Math.ceil(fraction * total);
+            long cumulative = 0;
+            for(int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                if(cumulative >= rank) return i < mBounds.length ? mBounds[i] : Long.MAX_VALUE;
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.manywords.softworks.morse;
+
+/**
+ * The management interface of a {@link MorseMetrics} registry, as seen through JMX.
+ * <br /><br />
+ * Latencies are in milliseconds of the measuring key's {@link MorseClock}. Percentiles are the
+ * upper bounds of the histogram buckets they fall in.
+ */
+public interface MorseMetricsMXBean {
+    long getCharactersDecoded();
+    long getFallbackInvocations();
+    long getFallbackCacheHits();
+    long getFallbackCacheMisses();
+    long getFallbackCacheEvictions();
+    long getFallbackOverrides();
+    long getSpeedChanges();
+    long getCharactersDropped();
+    long getCharactersEncoded();
+    long getSignalsEncoded();
+
+    long getDecodeLatencyCount();
+    double getDecodeLatencyMeanMsec();
+    long getDecodeLatencyP50Msec();
+    long getDecodeLatencyP99Msec();
+
+    long getDeadlineLatenessCount();
+    double getDeadlineLatenessMeanMsec();
+    long getDeadlineLatenessP99Msec();
+
+    /**
+     *
+     * @return Every metric in the Prometheus text exposition format.
+     */
+    String getPrometheusText();
+}
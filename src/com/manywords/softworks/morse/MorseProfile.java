@@ -1,7 +1,11 @@
 package com.manywords.softworks.morse;
 
+import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * A Morse profile represents the particular style of a given Morse sender. At present,
@@ -15,6 +19,18 @@ import java.util.List;
  * that each component of the generated signal may be up to 10% shorter or longer than the speed
  * settings specify.
  * <br /><br />
+ * Variation is random. By default it is drawn from the generating thread's own random number
+ * generator, so threads generating signal at once do not contend. A profile made by
+ * {@link #withSeed(long)} instead generates the same signal for the same text every time, and
+ * any profile will draw from a given {@link SplittableRandom}: split one per thread to generate
+ * reproducible signal in parallel.
+ * <br /><br />
+ * Variation is drawn once for each mark and space sent, in order. Versions before the encoding
+ * table also drew for the space after each character's last mark, then threw that space away,
+ * so with a variability above 0 a given text now draws its variation in a different order, and
+ * the signal differs from theirs; its timings follow the same distribution. With no
+ * variability, the signal is the same.
+ * <br /><br />
  * {@link #MorseProfile()} creates a standard, 12.5 wpm Morse profile with no variability.
  */
 public class MorseProfile {
@@ -28,6 +44,9 @@ public class MorseProfile {
 
     private final double variability;
 
+    private final boolean seeded;
+    private final long seed;
+
     /**
      * Initialize this Morse profile with the default speed (12.5 wpm) and
      * no variability.
@@ -52,6 +71,8 @@ public class MorseProfile {
     public MorseProfile(double wpm, double variability) {
         dotSpeed = dashSpeed = markSpeed = charSpeed = wordSpeed = MorseSpeed.getSpeedForWPM(wpm);
         this.variability = variability;
+        seeded = false;
+        seed = 0;
     }
 
     /**
@@ -83,6 +104,8 @@ public class MorseProfile {
         charSpeed = MorseSpeed.getSpeedForWPM(charWpm);
         wordSpeed = MorseSpeed.getSpeedForWPM(wordWpm);
         this.variability = variability;
+        seeded = false;
+        seed = 0;
     }
 
     /**
@@ -135,6 +158,32 @@ public class MorseProfile {
         wordSpeed = new MorseSpeed(wordMsec / MorseConstants.SPACE_LENGTH);
 
         this.variability = variability;
+        seeded = false;
+        seed = 0;
+    }
+
+    private MorseProfile(MorseProfile other, long seed) {
+        dotSpeed = other.dotSpeed;
+        dashSpeed = other.dashSpeed;
+        markSpeed = other.markSpeed;
+        charSpeed = other.charSpeed;
+        wordSpeed = other.wordSpeed;
+        variability = other.variability;
+
+        this.seeded = true;
+        this.seed = seed;
+    }
+
+    /**
+     * Create a copy of this profile whose variation is reproducible. Each call to one of its
+     * generation methods draws from a new random number generator with the given seed, so the
+     * same text always produces the same signal, on any thread and in any JVM.
+     *
+     * @param seed The seed.
+     * @return The seeded profile.
+     */
+    public MorseProfile withSeed(long seed) {
+        return new MorseProfile(this, seed);
     }
 
     /**
@@ -144,101 +193,143 @@ public class MorseProfile {
      * @return The generated timings.
      */
     public List<MorseSignal> generateSignal(List<MorseCharacter> characters) {
-        List<MorseSignal> signal = new ArrayList<>(characters.size());
-
-        for(MorseCharacter character : characters) {
-            if(character.character != null) {
-                if(character.character.equals(" ")) {
-                    // Remove the interchar space at the end of the signal, add a word space
-                    signal.remove(signal.size() - 1);
-                    int length = variation(wordSpeed.getSpaceLength());
-                    signal.add(new MorseSignal(false, length));
-                }
-                else {
-                    int[] charSignal = MorseConstants.lookup(character.character);
-                    if(charSignal != null) {
-                        for (int dotDash : charSignal) {
-                            if (dotDash == MorseConstants.DOT) {
-                                int length = variation(dotSpeed.dotMsec);
-                                signal.add(new MorseSignal(true, length));
-                            }
-                            else {
-                                int length = variation(dashSpeed.dashMsec);
-                                signal.add(new MorseSignal(true, length));
-                            }
-
-                            int length = variation(markSpeed.dotMsec);
-                            signal.add(new MorseSignal(false, length));
-                        }
-                    }
-
-                    // Remove the intermark space at the end of the signal, add a char space
-                    signal.remove(signal.size() - 1);
-                    int length = variation(charSpeed.dashMsec);
-                    signal.add(new MorseSignal(false, length));
-                }
-            }
-            else if(character.prosign != null) {
-                int[] prosignSignal = MorseConstants.lookupProsign(character.prosign);
-                if(prosignSignal != null) {
-                    for (int dotDash : prosignSignal) {
-                        if(dotDash == MorseConstants.DOT) {
-                            int length = variation(dotSpeed.dotMsec);
-                            signal.add(new MorseSignal(true, length));
-                        }
-                        else {
-                            int length = variation(dashSpeed.dashMsec);
-                            signal.add(new MorseSignal(true, length));
-                        }
-
-                        int length = variation(markSpeed.dotMsec);
-                        signal.add(new MorseSignal(false, length));
-                    }
-
-                    // Remove the intermark space at the end of the signal, add a char space
-                    signal.remove(signal.size() - 1);
-                    int length = variation(charSpeed.dashMsec);
-                    signal.add(new MorseSignal(false, length));
-                }
-            }
-        }
-        return signal;
+        return generateSignal(characters, newRandom());
     }
 
     /**
-     * Generate Morse timings for the given string using this profile.
+     * Generate Morse timings for the given string using this profile, drawing variation from
+     * the given random number generator.
      *
-     * @param message The string to generate Morse timings for.
+     * @param characters The string to generate Morse timings for.
+     * @param random The source of variation.
      * @return The generated timings.
      */
-    public List<MorseSignal> generateSignal(String message) {
-        message = message.toUpperCase();
-
-        List<MorseCharacter> characters = new ArrayList<>();
-
-        for(char c : message.toCharArray()) {
-            String s = Character.toString(c);
-
-            int[] charSignal = MorseConstants.lookup(s);
-            if(s.equals(" ")) {
-                characters.add(new MorseCharacter(s));
-            }
-            else if(charSignal != null) {
-                characters.add(new MorseCharacter(s));
-            }
-            else {
-                int[] prosignSignal = MorseConstants.lookupProsign(s);
-                if(prosignSignal != null) {
-                    characters.add(new MorseCharacter(MorseConstants.lookupProsign(prosignSignal)));
-                }
-            }
-        }
+    public List<MorseSignal> generateSignal(List<MorseCharacter> characters, SplittableRandom random) {
+        return drain(signalIterator(characters.iterator(), random), characters.size() * 8);
+    }
+
+    /**
+     * Generate Morse timings for the given text using this profile. Letters may be in either
+     * case; newlines and tabs are sent as the {@link MorseProsign#NEWLINE} and
+     * {@link MorseProsign#PARAGRAPH} prosigns, and other characters with no Morse equivalent are
+     * skipped.
+     *
+     * @param message The text to generate Morse timings for.
+     * @return The generated timings.
+     */
+    public List<MorseSignal> generateSignal(CharSequence message) {
+        return generateSignal(message, newRandom());
+    }
+
+    /**
+     * Generate Morse timings for the given text using this profile, drawing variation from the
+     * given random number generator. See {@link #generateSignal(CharSequence)}.
+     *
+     * @param message The text to generate Morse timings for.
+     * @param random The source of variation.
+     * @return The generated timings.
+     */
+    public List<MorseSignal> generateSignal(CharSequence message, SplittableRandom random) {
+        return drain(signalIterator(message, random), message.length() * 8);
+    }
+
+    /**
+     * Generate Morse timings for the given text lazily, as the returned iterator is consumed.
+     * The iterator produces the same timings as {@link #generateSignal(CharSequence)}, but holds
+     * only one character at a time, so it suits very long texts and playback which should start
+     * immediately.
+     *
+     * @param message The text to generate Morse timings for.
+     * @return An iterator over the generated timings.
+     */
+    public Iterator<MorseSignal> signalIterator(CharSequence message) {
+        return signalIterator(message, newRandom());
+    }
+
+    /**
+     * Generate Morse timings for the given text lazily, drawing variation from the given random
+     * number generator as the returned iterator is consumed.
+     *
+     * @param message The text to generate Morse timings for.
+     * @param random The source of variation, which must not be shared with another thread
+     *               while the iterator is in use.
+     * @return An iterator over the generated timings.
+     */
+    public Iterator<MorseSignal> signalIterator(CharSequence message, SplittableRandom random) {
+        return new MorseSignalIterator.OfText(this, random, message);
+    }
+
+    /**
+     * Generate Morse timings for text read from the given reader, lazily, as the returned
+     * iterator is consumed. Read errors are thrown from the iterator as
+     * {@link java.io.UncheckedIOException}s. The reader is not closed.
+     *
+     * @param reader The source of the text to generate Morse timings for.
+     * @return An iterator over the generated timings.
+     */
+    public Iterator<MorseSignal> signalIterator(Reader reader) {
+        return signalIterator(reader, newRandom());
+    }
+
+    /**
+     * Generate Morse timings for text read from the given reader lazily, drawing variation from
+     * the given random number generator. See {@link #signalIterator(Reader)}.
+     *
+     * @param reader The source of the text to generate Morse timings for.
+     * @param random The source of variation, which must not be shared with another thread
+     *               while the iterator is in use.
+     * @return An iterator over the generated timings.
+     */
+    public Iterator<MorseSignal> signalIterator(Reader reader, SplittableRandom random) {
+        return new MorseSignalIterator.OfReader(this, random, reader);
+    }
+
+    /**
+     * Generate Morse timings for the given characters lazily, as the returned iterator is
+     * consumed.
+     *
+     * @param characters The characters to generate Morse timings for.
+     * @return An iterator over the generated timings.
+     */
+    public Iterator<MorseSignal> signalIterator(Iterator<MorseCharacter> characters) {
+        return signalIterator(characters, newRandom());
+    }
+
+    /**
+     * Generate Morse timings for the given characters lazily, drawing variation from the given
+     * random number generator as the returned iterator is consumed.
+     *
+     * @param characters The characters to generate Morse timings for.
+     * @param random The source of variation, which must not be shared with another thread
+     *               while the iterator is in use.
+     * @return An iterator over the generated timings.
+     */
+    public Iterator<MorseSignal> signalIterator(Iterator<MorseCharacter> characters, SplittableRandom random) {
+        return new MorseSignalIterator.OfCharacters(this, random, characters);
+    }
+
+    // A fresh generator for a seeded profile, or null to use the thread's own
+    private SplittableRandom newRandom() {
+        return seeded ? new SplittableRandom(seed) : null;
+    }
 
-        return generateSignal(characters);
+    private static List<MorseSignal> drain(Iterator<MorseSignal> iterator, int sizeEstimate) {
+        List<MorseSignal> signal = new ArrayList<>(sizeEstimate);
+        while(iterator.hasNext()) {
+            signal.add(iterator.next());
+        }
+        return signal;
     }
 
-    private int variation(int length) {
-        double actualVariation = 1d + (Math.random() * (2 * variability)) - variability;
+    int getDotMsec() { return dotSpeed.dotMsec; }
+    int getDashMsec() { return dashSpeed.dashMsec; }
+    int getIntermarkMsec() { return markSpeed.dotMsec; }
+    int getCharSpaceMsec() { return charSpeed.dashMsec; }
+    int getWordSpaceMsec() { return wordSpeed.getSpaceLength(); }
+
+    int variation(int length, SplittableRandom random) {
+        double sample = random != null ? random.nextDouble() : ThreadLocalRandom.current().nextDouble();
+        double actualVariation = 1d + (sample * (2 * variability)) - variability;
         return (int) (length * actualVariation);
     }
 }
@@ -0,0 +1,435 @@
+package com.manywords.softworks.morse;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A listener which publishes received characters to reactive-streams subscribers.
+ * <br /><br />
+ * Give a publisher to a {@link MorseKey}, or to {@link MorseDecoder#decode(java.util.Iterator, MorseListener)},
+ * in place of a listener, and {@link #close()} it when the signal ends. Each subscriber has its
+ * own bounded buffer, and is sent characters on the executor no faster than it requests them. A
+ * subscriber which falls behind fills its buffer, and then the publisher's
+ * {@link OverflowPolicy} decides what happens to the next character, so no subscriber can make
+ * memory grow without limit.
+ * <br /><br />
+ * Under {@link OverflowPolicy#DROP_OLDEST} and {@link OverflowPolicy#COALESCE_WHITESPACE}, a slow
+ * subscriber loses characters but holds up nobody else. Under {@link OverflowPolicy#BLOCK},
+ * characters are offered to each subscriber in turn on the thread which received them, so one
+ * subscriber with a full buffer stalls that thread: the key's delivery, and with it every other
+ * subscriber, waits until it makes room.
+ * <br /><br />
+ * Subscribers see only the characters received after they subscribed. Characters received after
+ * the publisher is closed are ignored.
+ */
+public class MorsePublisher implements MorseListener, Flow.Publisher<MorseCharacter>, AutoCloseable {
+    /**
+     * What to do with a character when a subscriber's buffer is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Drop the oldest buffered character to make room. The receiving key never waits.
+         */
+        DROP_OLDEST,
+        /**
+         * Wait until the subscriber makes room. The receiving key waits too, as do all other
+         * subscribers, so this suits offline decoding better than live keys: the slowest
+         * subscriber paces the decode, rather than losing text.
+         */
+        BLOCK,
+        /**
+         * Merge adjacent white space into one character, keeping the strongest of space, newline
+         * and paragraph, and drop the oldest character only if there is no white space to merge.
+         * Under pressure, a subscriber loses gaps in the text before it loses text.
+         */
+        COALESCE_WHITESPACE
+    }
+
+    private final Executor mExecutor;
+    private final int mBufferSize;
+    private final OverflowPolicy mPolicy;
+
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    // Guarded by mSubscriptions, so that no subscriber joins after the others are completed
+    private boolean mClosed;
+    private Throwable mCloseError;
+
+    private volatile MorseMetrics mMetrics = MorseMetrics.getShared();
+
+    /**
+     * A publisher which delivers on the common fork-join pool, buffers
+     * {@link Flow#defaultBufferSize()} characters per subscriber, and drops the oldest when a
+     * buffer overflows.
+     */
+    public MorsePublisher() {
+        this(ForkJoinPool.commonPool(), Flow.defaultBufferSize(), OverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     *
+     * @param executor The executor on which to call subscribers. It must not be the thread
+     *                 receiving characters if the policy is {@link OverflowPolicy#BLOCK}.
+     * @param bufferSize The most characters to hold for each subscriber.
+     * @param policy What to do when a subscriber's buffer is full.
+     */
+    public MorsePublisher(Executor executor, int bufferSize, OverflowPolicy policy) {
+        if(executor == null || policy == null) throw new NullPointerException();
+        if(bufferSize < 1) throw new IllegalArgumentException("Buffer size must be at least 1");
+
+        mExecutor = executor;
+        mBufferSize = bufferSize;
+        mPolicy = policy;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super MorseCharacter> subscriber) {
+        if(subscriber == null) throw new NullPointerException();
+
+        Subscription subscription = new Subscription(subscriber);
+        synchronized(mSubscriptions) {
+            if(mClosed) subscription.complete(mCloseError);
+            else mSubscriptions.add(subscription);
+        }
+
+        subscription.schedule();
+    }
+
+    @Override
+    public void morseReceived(MorseCharacter c) {
+        for(Subscription subscription : mSubscriptions) {
+            subscription.offer(c);
+        }
+    }
+
+    /**
+     * Complete every subscription once its subscriber has been sent what is buffered for it.
+     * Later subscribers are completed at once.
+     */
+    @Override
+    public void close() {
+        closeExceptionally(null);
+    }
+
+    /**
+     * Fail every subscription once its subscriber has been sent what is buffered for it. Later
+     * subscribers are failed at once.
+     * @param error The error to send, or null to complete normally.
+     */
+    public void closeExceptionally(Throwable error) {
+        synchronized(mSubscriptions) {
+            if(mClosed) return;
+            mClosed = true;
+            mCloseError = error;
+
+            for(Subscription subscription : mSubscriptions) {
+                subscription.complete(error);
+            }
+            mSubscriptions.clear();
+        }
+    }
+
+    public boolean isClosed() {
+        synchronized(mSubscriptions) {
+            return mClosed;
+        }
+    }
+
+    /**
+     *
+     * @return The number of current subscribers.
+     */
+    public int getSubscriberCount() {
+        return mSubscriptions.size();
+    }
+
+    /**
+     *
+     * @return The number of characters dropped, over all subscribers, because a subscriber's
+     * buffer was full. Merged white space is not counted.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return mPolicy;
+    }
+
+    public MorseMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Set the registry into which dropped characters are counted. By default, the shared registry.
+     * @param metrics The registry.
+     */
+    public void setMetrics(MorseMetrics metrics) {
+        if(metrics == null) throw new IllegalArgumentException("Metrics may not be null");
+        mMetrics = metrics;
+    }
+
+    private void dropped() {
+        mDropped.incrementAndGet();
+        mMetrics.charactersDropped.increment();
+    }
+
+    private static int whitespaceRank(MorseCharacter c) {
+        if(MorseCharacter.PARAGRAPH.equals(c)) return 2;
+        if(MorseCharacter.NEWLINE.equals(c)) return 1;
+        return 0;
+    }
+
+    /**
+     * One subscriber's buffer and demand. Buffer, demand and completion are guarded by the
+     * subscription's monitor; calls to the subscriber are made by one delivery at a time.
+     */
+    private class Subscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super MorseCharacter> mSubscriber;
+
+        private final MorseCharacter[] mBuffer = new MorseCharacter[mBufferSize];
+        private int mHead;
+        private int mCount;
+        private long mDemand;
+        private boolean mDone;
+        private Throwable mError;
+
+        private volatile boolean mCancelled;
+        private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+        // Only touched by the running delivery; published between deliveries by mScheduled
+        private boolean mSubscribed;
+
+        private final Runnable mDelivery = new Runnable() {
+            @Override
+            public void run() {
+                deliver();
+            }
+        };
+
+        Subscription(Flow.Subscriber<? super MorseCharacter> subscriber) {
+            mSubscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized(this) {
+                if(mCancelled) return;
+
+                // Demand still counts after completion, until the buffer is empty
+                if(n <= 0) {
+                    mDone = true;
+                    mError = new IllegalArgumentException("Requested " + n + " characters; must request at least 1");
+                    clear();
+                }
+                else {
+                    mDemand += n;
+                    if(mDemand < 0) mDemand = Long.MAX_VALUE;
+                }
+            }
+
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            mSubscriptions.remove(this);
+
+            synchronized(this) {
+                clear();
+            }
+        }
+
+        void offer(MorseCharacter c) {
+            synchronized(this) {
+                if(mCancelled || mDone) return;
+
+                if(mCount == mBufferSize && !makeRoom(c)) return;
+                mBuffer[(mHead + mCount) % mBufferSize] = c;
+                mCount++;
+            }
+
+            schedule();
+        }
+
+        void complete(Throwable error) {
+            synchronized(this) {
+                if(mDone) return;
+                mDone = true;
+                mError = error;
+                notifyAll();
+            }
+
+            schedule();
+        }
+
+        /**
+         * Apply the overflow policy to a full buffer.
+         * @return True if there is now room for c, false if c was merged or dropped.
+         */
+        private boolean makeRoom(MorseCharacter c) {
+            switch(mPolicy) {
+                case BLOCK:
+                    while(mCount == mBufferSize && !mCancelled && !mDone) {
+                        try {
+                            wait();
+                        }
+                        catch(InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            dropped();
+                            return false;
+                        }
+                    }
+
+                    // Cancelled: the buffer is gone, and c with it. Completed: nobody will take
+                    // c from the buffer now, so it counts as dropped.
+                    if(mCancelled) return false;
+                    if(mDone) {
+                        dropped();
+                        return false;
+                    }
+                    return true;
+
+                case COALESCE_WHITESPACE:
+                    MorseCharacter newest = get(mCount - 1);
+                    if(c.isWhitespace() && newest.isWhitespace()) {
+                        if(whitespaceRank(c) > whitespaceRank(newest)) set(mCount - 1, c);
+                        return false;
+                    }
+
+                    for(int i = 1; i < mCount; i++) {
+                        MorseCharacter previous = get(i - 1);
+                        MorseCharacter current = get(i);
+                        if(previous.isWhitespace() && current.isWhitespace()) {
+                            if(whitespaceRank(current) > whitespaceRank(previous)) set(i - 1, current);
+                            removeAt(i);
+                            return true;
+                        }
+                    }
+
+                    // No white space to merge
+                    return dropOldest();
+
+                case DROP_OLDEST:
+                default:
+                    return dropOldest();
+            }
+        }
+
+        private boolean dropOldest() {
+            mBuffer[mHead] = null;
+            mHead = (mHead + 1) % mBufferSize;
+            mCount--;
+            dropped();
+            return true;
+        }
+
+        private MorseCharacter get(int i) {
+            return mBuffer[(mHead + i) % mBufferSize];
+        }
+
+        private void set(int i, MorseCharacter c) {
+            mBuffer[(mHead + i) % mBufferSize] = c;
+        }
+
+        private void removeAt(int i) {
+            for(int j = i; j < mCount - 1; j++) {
+                set(j, get(j + 1));
+            }
+            set(mCount - 1, null);
+            mCount--;
+        }
+
+        private void clear() {
+            for(int i = 0; i < mCount; i++) {
+                set(i, null);
+            }
+            mCount = 0;
+            notifyAll();
+        }
+
+        private synchronized boolean hasWork() {
+            if(mCancelled) return false;
+            return !mSubscribed || (mCount > 0 && mDemand > 0) || (mCount == 0 && mDone);
+        }
+
+        void schedule() {
+            if(!mScheduled.compareAndSet(false, true)) return;
+
+            try {
+                mExecutor.execute(mDelivery);
+            }
+            catch(RejectedExecutionException e) {
+                // Whatever is buffered stays there, and the next offer or request tries again
+                mScheduled.set(false);
+            }
+        }
+
+        private void deliver() {
+            try {
+                if(!mSubscribed) {
+                    mSubscribed = true;
+                    mSubscriber.onSubscribe(this);
+                }
+
+                while(!mCancelled) {
+                    MorseCharacter c;
+                    Throwable error = null;
+
+                    synchronized(this) {
+                        if(mCount > 0 && mDemand > 0) {
+                            c = mBuffer[mHead];
+                            mBuffer[mHead] = null;
+                            mHead = (mHead + 1) % mBufferSize;
+                            mCount--;
+                            if(mDemand != Long.MAX_VALUE) mDemand--;
+                            notifyAll();
+                        }
+                        else if(mDone && mCount == 0) {
+                            c = null;
+                            error = mError;
+                        }
+                        else break;
+                    }
+
+                    if(c == null) {
+                        // Nothing is sent after completion, even if the subscriber throws
+                        cancel();
+                        try {
+                            if(error != null) mSubscriber.onError(error);
+                            else mSubscriber.onComplete();
+                        }
+                        catch(Throwable ignored) {
+                        }
+                        break;
+                    }
+
+                    mSubscriber.onNext(c);
+                }
+            }
+            catch(Throwable t) {
+                // A subscriber which throws is cancelled, and told why if it will listen
+                cancel();
+                try {
+                    mSubscriber.onError(t);
+                }
+                catch(Throwable ignored) {
+                }
+            }
+            finally {
+                mScheduled.set(false);
+            }
+
+            // An offer or request may have come in after we stopped looking, and found us still
+            // scheduled.
+            if(hasWork()) schedule();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.manywords.softworks.morse;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A recording of 16-bit PCM audio in a WAV or raw file, read by memory-mapping the file rather
+ * than copying it onto the heap.
+ * <br /><br />
+ * Samples are mapped a window of about 64MB at a time and handed straight to a
+ * {@link MorseToneDetector}, so heap use does not depend on the size of the file, and the
+ * operating system's page cache does the buffering. Only the first channel of multi-channel
+ * audio is used.
+ * <br /><br />
+ * Recordings are immutable, and may be processed by several threads at once.
+ */
+public class MorseRecording {
+    // Bytes mapped at once, before rounding down to whole frames
+    private static final int WINDOW_BYTES = 64 * 1024 * 1024;
+
+    private static final int WAVE_FORMAT_PCM = 1;
+    private static final int WAVE_FORMAT_EXTENSIBLE = 0xfffe;
+
+    private final Path mPath;
+    private final AudioFormat mFormat;
+    private final long mDataOffset;
+    private final long mDataLength;
+
+    private MorseRecording(Path path, AudioFormat format, long dataOffset, long dataLength) {
+        mPath = path;
+        mFormat = format;
+        mDataOffset = dataOffset;
+        mDataLength = dataLength - dataLength % format.getFrameSize();
+    }
+
+    /**
+     * Open a WAV file. Only the headers are read.
+     * @param path The file.
+     * @return The recording.
+     * @throws IOException If the file cannot be read.
+     * @throws UnsupportedAudioFileException If the file is not 16-bit PCM WAV.
+     */
+    public static MorseRecording openWav(Path path) throws IOException, UnsupportedAudioFileException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0);
+
+            if(header.getInt(0) != 0x46464952 || header.getInt(8) != 0x45564157) {
+                throw new UnsupportedAudioFileException("Not a RIFF WAVE file: " + path);
+            }
+
+            AudioFormat format = null;
+            ByteBuffer chunk = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+            long position = 12;
+
+            while(position + 8 <= size) {
+                chunk.clear().limit(8);
+                readFully(channel, chunk, position);
+                int id = chunk.getInt(0);
+                long length = chunk.getInt(4) & 0xffffffffL;
+                position += 8;
+
+                if(id == 0x20746d66) { // "fmt "
+                    if(length < 16) throw new UnsupportedAudioFileException("Truncated format chunk: " + path);
+                    chunk.clear();
+                    readFully(channel, chunk, position);
+
+                    int formatTag = chunk.getShort(0) & 0xffff;
+                    int channels = chunk.getShort(2) & 0xffff;
+                    int sampleRate = chunk.getInt(4);
+                    int bits = chunk.getShort(14) & 0xffff;
+
+                    if((formatTag != WAVE_FORMAT_PCM && formatTag != WAVE_FORMAT_EXTENSIBLE) || bits != 16 || channels == 0) {
+                        throw new UnsupportedAudioFileException("Only 16-bit PCM is supported: " + path);
+                    }
+
+                    format = new AudioFormat(sampleRate, 16, channels, true, false);
+                }
+                else if(id == 0x61746164) { // "data"
+                    if(format == null) throw new UnsupportedAudioFileException("Data before format: " + path);
+
+                    // Recorders which were interrupted leave the length unset or too long
+                    return new MorseRecording(path, format, position, Math.min(length, size - position));
+                }
+
+                // Chunks are padded to an even length
+                position += length + (length & 1);
+            }
+
+            throw new UnsupportedAudioFileException("No audio data: " + path);
+        }
+    }
+
+    /**
+     * Open a file of raw signed 16-bit samples with no header.
+     * @param path The file.
+     * @param sampleRate The sample rate in samples per second.
+     * @param channels The number of interleaved channels.
+     * @param bigEndian True if samples are big-endian.
+     * @return The recording.
+     * @throws IOException If the file cannot be read.
+     */
+    public static MorseRecording openRaw(Path path, float sampleRate, int channels, boolean bigEndian) throws IOException {
+        if(channels <= 0) throw new IllegalArgumentException("Channel count must be positive");
+
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new MorseRecording(path, new AudioFormat(sampleRate, 16, channels, true, bigEndian), 0, channel.size());
+        }
+    }
+
+    public Path getPath() {
+        return mPath;
+    }
+
+    public AudioFormat getFormat() {
+        return mFormat;
+    }
+
+    /**
+     *
+     * @return The number of frames, each holding one sample from every channel.
+     */
+    public long getFrameCount() {
+        return mDataLength / mFormat.getFrameSize();
+    }
+
+    /**
+     *
+     * @return The length of the recording in milliseconds.
+     */
+    public long getDurationMsec() {
+        return (long) (getFrameCount() * 1000.0 / mFormat.getSampleRate());
+    }
+
+    /**
+     * Feed the whole recording to a tone detector, on the calling thread.
+     * @param detector The detector, which should expect this recording's sample rate.
+     * @throws IOException If the file cannot be read.
+     */
+    public void process(MorseToneDetector detector) throws IOException {
+        process(detector, 0, getFrameCount());
+    }
+
+    /**
+     * Feed part of the recording to a tone detector, on the calling thread.
+     * @param detector The detector, which should expect this recording's sample rate.
+     * @param startFrame The first frame to process.
+     * @param endFrame The frame after the last to process.
+     * @throws IOException If the file cannot be read.
+     */
+    public void process(MorseToneDetector detector, long startFrame, long endFrame) throws IOException {
+        if(startFrame < 0 || endFrame > getFrameCount() || startFrame > endFrame) throw new IndexOutOfBoundsException("Frames " + startFrame + " to " + endFrame);
+
+        int frameSize = mFormat.getFrameSize();
+        long window = WINDOW_BYTES - WINDOW_BYTES % frameSize;
+        ByteOrder order = mFormat.isBigEndian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        long end = endFrame * frameSize;
+
+        try(FileChannel channel = FileChannel.open(mPath, StandardOpenOption.READ)) {
+            for(long offset = startFrame * frameSize; offset < end; offset += window) {
+                long length = Math.min(window, end - offset);
+
+                // Each window is unmapped once it is collected; only one is referenced at a time
+                MappedByteBuffer samples = channel.map(FileChannel.MapMode.READ_ONLY, mDataOffset + offset, length);
+                samples.order(order);
+                detector.process(samples, frameSize);
+            }
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if(read < 0) throw new IOException("Unexpected end of file");
+            position += read;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mPath + " (" + mFormat + ")";
+    }
+}
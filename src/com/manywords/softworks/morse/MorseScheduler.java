@@ -0,0 +1,252 @@
+package com.manywords.softworks.morse;
+
+/**
+ * A hashed timing wheel which fires {@link MorseClock.Deadline}s for any number of
+ * {@link MorseKey}s from a single thread.
+ * <br /><br />
+ * Time is divided into ticks, and each deadline lives in the wheel bucket for the tick in which
+ * it expires. Scheduling a deadline again moves it to a new bucket in place, so keys re-arm their
+ * char and word deadlines on every key release without allocating anything.
+ * <br /><br />
+ * Deadlines are given in {@link System#currentTimeMillis()} time, and fire at most one tick
+ * late (plus scheduling jitter). The worker thread is a daemon, started when the first deadline
+ * is scheduled, and sleeps while no deadlines are pending.
+ * <br /><br />
+ * A deadline action which throws is reported to the worker thread's uncaught exception handler,
+ * and the worker carries on with the next deadline.
+ */
+class MorseScheduler {
+    static final long DEFAULT_TICK_MILLIS = 4;
+    static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private static MorseScheduler sShared;
+
+    /**
+     *
+     * @return The scheduler used by {@link MorseClock#SYSTEM}.
+     */
+    static synchronized MorseScheduler getShared() {
+        if(sShared == null) sShared = new MorseScheduler("MorseScheduler", DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE);
+        return sShared;
+    }
+
+    private final String mName;
+    private final long mTickMillis;
+    private final Entry[] mWheel;
+    private final int mMask;
+
+    private final Object mLock = new Object();
+    private int mPending;
+    private long mCurrentTick = -1;
+    private Thread mThread;
+    private boolean mShutdown;
+
+    // Worker-thread scratch space for deadlines which have expired in the current tick
+    private Entry[] mExpired = new Entry[16];
+    private int[] mExpiredGenerations = new int[16];
+
+    /**
+     *
+     * @param name The name of the worker thread.
+     * @param tickMillis The length of a wheel tick in milliseconds.
+     * @param wheelSize The number of buckets in the wheel, rounded up to a power of two.
+     */
+    MorseScheduler(String name, long tickMillis, int wheelSize) {
+        if(tickMillis <= 0) throw new IllegalArgumentException("Tick length must be positive");
+        if(wheelSize <= 0) throw new IllegalArgumentException("Wheel size must be positive");
+
+        int size = Integer.highestOneBit(wheelSize);
+        if(size < wheelSize) size <<= 1;
+
+        mName = name;
+        mTickMillis = tickMillis;
+        mWheel = new Entry[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * Create a deadline which will run the given action on this scheduler's thread.
+     * @param action The action to run.
+     * @return An unscheduled deadline.
+     */
+    MorseClock.Deadline newDeadline(Runnable action) {
+        return new Entry(action);
+    }
+
+    /**
+     *
+     * @return The number of deadlines waiting to fire.
+     */
+    int getPendingCount() {
+        synchronized (mLock) {
+            return mPending;
+        }
+    }
+
+    /**
+     * Stop the worker thread. Pending deadlines never fire, and later ones are ignored.
+     */
+    void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+            if(mThread != null) mThread.interrupt();
+        }
+    }
+
+    private void schedule(Entry e, long timestamp) {
+        synchronized (mLock) {
+            if(mShutdown) return;
+            if(e.mBucket >= 0) unlink(e);
+
+            if(mCurrentTick < 0) mCurrentTick = System.currentTimeMillis() / mTickMillis;
+
+            // Round up, so we never fire early
+            long tick = (timestamp + mTickMillis - 1) / mTickMillis;
+            if(tick <= mCurrentTick) tick = mCurrentTick + 1;
+
+            e.mGeneration++;
+            e.mExpiryTick = tick;
+            link(e, (int) (tick & mMask));
+
+            mPending++;
+            if(mThread == null) {
+                mThread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        work();
+                    }
+                }, mName);
+                mThread.setDaemon(true);
+                mThread.start();
+            }
+            else if(mPending == 1) {
+                mLock.notify();
+            }
+        }
+    }
+
+    private void cancel(Entry e) {
+        synchronized (mLock) {
+            e.mGeneration++;
+            if(e.mBucket >= 0) unlink(e);
+        }
+    }
+
+    private void link(Entry e, int bucket) {
+        e.mBucket = bucket;
+        e.mPrev = null;
+        e.mNext = mWheel[bucket];
+        if(e.mNext != null) e.mNext.mPrev = e;
+        mWheel[bucket] = e;
+    }
+
+    private void unlink(Entry e) {
+        if(e.mPrev != null) e.mPrev.mNext = e.mNext;
+        else mWheel[e.mBucket] = e.mNext;
+        if(e.mNext != null) e.mNext.mPrev = e.mPrev;
+
+        e.mPrev = e.mNext = null;
+        e.mBucket = -1;
+        mPending--;
+    }
+
+    private void work() {
+        while(true) {
+            int expiredCount = 0;
+
+            synchronized (mLock) {
+                try {
+                    if(mShutdown) return;
+                    while(mPending == 0) {
+                        mLock.wait();
+                    }
+
+                    long now = System.currentTimeMillis();
+                    long nowTick = now / mTickMillis;
+                    if(nowTick <= mCurrentTick) {
+                        mLock.wait(Math.max(1, (mCurrentTick + 1) * mTickMillis - now));
+                        continue;
+                    }
+
+                    // If we fell more than a lap behind, one pass over the wheel covers everything
+                    long firstTick = Math.max(mCurrentTick + 1, nowTick - mMask);
+                    for(long tick = firstTick; tick <= nowTick; tick++) {
+                        Entry e = mWheel[(int) (tick & mMask)];
+                        while(e != null) {
+                            Entry next = e.mNext;
+                            if(e.mExpiryTick <= nowTick) {
+                                unlink(e);
+                                expiredCount = addExpired(e, expiredCount);
+                            }
+                            e = next;
+                        }
+                    }
+
+                    mCurrentTick = nowTick;
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            for(int i = 0; i < expiredCount; i++) {
+                Entry e = mExpired[i];
+                mExpired[i] = null;
+
+                // Rescheduled or cancelled since it expired
+                if(e.mGeneration != mExpiredGenerations[i]) continue;
+
+                try {
+                    e.mAction.run();
+                }
+                catch (RuntimeException ex) {
+                    // One key's failure must not stop the others' deadlines
+                    Thread current = Thread.currentThread();
+                    current.getUncaughtExceptionHandler().uncaughtException(current, ex);
+                }
+            }
+        }
+    }
+
+    private int addExpired(Entry e, int count) {
+        if(count == mExpired.length) {
+            Entry[] expired = new Entry[count * 2];
+            int[] generations = new int[count * 2];
+            System.arraycopy(mExpired, 0, expired, 0, count);
+            System.arraycopy(mExpiredGenerations, 0, generations, 0, count);
+            mExpired = expired;
+            mExpiredGenerations = generations;
+        }
+
+        mExpired[count] = e;
+        mExpiredGenerations[count] = e.mGeneration;
+        return count + 1;
+    }
+
+    private class Entry implements MorseClock.Deadline {
+        private final Runnable mAction;
+
+        // Guarded by mLock
+        private long mExpiryTick;
+        private int mBucket = -1;
+        private Entry mPrev;
+        private Entry mNext;
+
+        // Written under mLock, read by the worker after it leaves the lock
+        private volatile int mGeneration;
+
+        Entry(Runnable action) {
+            mAction = action;
+        }
+
+        @Override
+        public void schedule(long timestamp) {
+            MorseScheduler.this.schedule(this, timestamp);
+        }
+
+        @Override
+        public void cancel() {
+            MorseScheduler.this.cancel(this);
+        }
+    }
+}
@@ -1,8 +1,5 @@
 package com.manywords.softworks.morse;
 
-import java.util.ArrayList;
-import java.util.List;
-
 /**
  * Represents a Morse signal.
  */
@@ -27,26 +24,42 @@ public class MorseSignal {
         return "[" + (on ? "ON:" : "OFF:") + duration + "]";
     }
 
-    static int[] toDotDashArray(List<MorseSignal> currentSignal, MorseSpeed characterSpeed, MorseStats stats) {
-        List<Integer> signals = new ArrayList<>();
+    /**
+     * Classify the marks in part of a signal as dots or dashes, updating statistics as we go.
+     *
+     * @return The dot/dash pattern as a packed code (see {@link MorseConstants#pack(int[])}),
+     * or {@link MorseConstants#NO_CODE} if the pattern is too long to pack.
+     */
+    static int toPackedCode(MorseSignalBuffer currentSignal, int start, int end, MorseSpeed characterSpeed, MorseStats stats) {
+        return toPackedCode(currentSignal, start, end, characterSpeed.dashMsec * MorseKey.FUDGE_FACTOR, stats);
+    }
+
+    /**
+     * Classify the marks in part of a signal as dots or dashes, updating statistics as we go.
+     *
+     * @param dashThreshold The shortest mark, in milliseconds, which counts as a dash.
+     * @return The dot/dash pattern as a packed code, or {@link MorseConstants#NO_CODE} if the
+     * pattern is too long to pack.
+     */
+    static int toPackedCode(MorseSignalBuffer currentSignal, int start, int end, double dashThreshold, MorseStats stats) {
+        int code = MorseConstants.EMPTY_CODE;
+        int length = 0;
 
-        for(MorseSignal signal : currentSignal) {
-            if(signal.on) {
-                if(signal.duration < characterSpeed.dashMsec * MorseKey.FUDGE_FACTOR) {
-                    signals.add(MorseConstants.DOT);
-                    if(stats != null) stats.addDot(signal.duration);
+        for(int i = start; i < end; i++) {
+            if(currentSignal.isOn(i)) {
+                long duration = currentSignal.getDuration(i);
+                if(duration < dashThreshold) {
+                    code <<= 1;
+                    if(stats != null) stats.addDot(duration);
                 }
                 else {
-                    signals.add(MorseConstants.DASH);
-                    if(stats != null) stats.addDash(signal.duration);
+                    code = (code << 1) | 1;
+                    if(stats != null) stats.addDash(duration);
                 }
+                length++;
             }
         }
 
-        int[] signalArray = new int[signals.size()];
-        for(int i = 0; i < signalArray.length; i++) {
-            signalArray[i] = signals.get(i);
-        }
-        return signalArray;
+        return length > MorseConstants.MAX_CODE_LENGTH ? MorseConstants.NO_CODE : code;
     }
 }
@@ -0,0 +1,62 @@
+package com.manywords.softworks.morse;
+
+/**
+ * A reusable buffer of Morse signal elements, stored as primitives. Each element is packed into
+ * a long: the duration in milliseconds in the high bits, and an on/off flag in the low bit.
+ * <br /><br />
+ * The buffer grows to fit the longest character it has seen and is cleared, not reallocated,
+ * between characters, so filling it allocates nothing in steady state.
+ */
+class MorseSignalBuffer {
+    private static final int DEFAULT_CAPACITY = 32;
+
+    private long[] mSignals;
+    private int mSize;
+
+    MorseSignalBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    MorseSignalBuffer(int capacity) {
+        mSignals = new long[Math.max(1, capacity)];
+    }
+
+    void add(boolean on, long duration) {
+        if(mSize == mSignals.length) {
+            long[] signals = new long[mSize * 2];
+            System.arraycopy(mSignals, 0, signals, 0, mSize);
+            mSignals = signals;
+        }
+
+        mSignals[mSize++] = (duration << 1) | (on ? 1 : 0);
+    }
+
+    void add(MorseSignal signal) {
+        add(signal.on, signal.duration);
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isOn(int index) {
+        return (mSignals[index] & 1) != 0;
+    }
+
+    long getDuration(int index) {
+        return mSignals[index] >> 1;
+    }
+
+    void clear() {
+        mSize = 0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < mSize; i++) {
+            sb.append("[").append(isOn(i) ? "ON:" : "OFF:").append(getDuration(i)).append("]");
+        }
+        return sb.toString();
+    }
+}
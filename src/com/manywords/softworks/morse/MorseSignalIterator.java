@@ -0,0 +1,221 @@
+package com.manywords.softworks.morse;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.SplittableRandom;
+
+/**
+ * Generates the Morse signal for a source of text one element at a time, as it is consumed.
+ * <br /><br />
+ * Only the character being sent and the silence after it are held at any time, so memory use
+ * does not depend on the length of the text, and the first element is available as soon as the
+ * first character has been read.
+ */
+abstract class MorseSignalIterator implements Iterator<MorseSignal> {
+    // Tokens returned by nextToken(), besides packed codes
+    static final int TOKEN_END = -1;
+    static final int TOKEN_SPACE = -2;
+
+    private static final int GAP_NONE = 0;
+    private static final int GAP_CHAR = 1;
+    private static final int GAP_WORD = 2;
+
+    // Counts are added to the metrics this many signals at a time, and at the end
+    private static final int METRICS_BATCH = 256;
+
+    private final MorseProfile mProfile;
+
+    // The source of variation, or null for the consuming thread's own
+    private final SplittableRandom mRandom;
+
+    // The character being sent, and the index of its next mark, counting down to 0
+    private int mCode;
+    private int mMarkIndex = -1;
+    private boolean mIntermarkNext;
+
+    // The silence owed after the last character, which a word space may lengthen
+    private int mGap = GAP_NONE;
+
+    private MorseSignal mNext;
+    private boolean mFinished;
+
+    private final MorseMetrics mMetrics = MorseMetrics.getShared();
+    private int mUnrecordedCharacters;
+    private int mUnrecordedSignals;
+
+    MorseSignalIterator(MorseProfile profile, SplittableRandom random) {
+        mProfile = profile;
+        mRandom = random;
+    }
+
+    /**
+     *
+     * @return The packed code of the next character to send, {@link #TOKEN_SPACE} for a word
+     * space, {@link #TOKEN_END} at the end of the text, or {@link MorseConstants#NO_CODE} for a
+     * character which cannot be sent.
+     */
+    abstract int nextToken();
+
+    @Override
+    public boolean hasNext() {
+        if(mNext == null && !mFinished) {
+            mNext = computeNext();
+            if(mNext == null) {
+                mFinished = true;
+                recordMetrics();
+            }
+        }
+        return mNext != null;
+    }
+
+    @Override
+    public MorseSignal next() {
+        if(!hasNext()) throw new NoSuchElementException();
+
+        MorseSignal next = mNext;
+        mNext = null;
+
+        if(++mUnrecordedSignals >= METRICS_BATCH) recordMetrics();
+        return next;
+    }
+
+    private void recordMetrics() {
+        mMetrics.charactersEncoded.add(mUnrecordedCharacters);
+        mMetrics.signalsEncoded.add(mUnrecordedSignals);
+        mUnrecordedCharacters = mUnrecordedSignals = 0;
+    }
+
+    private MorseSignal computeNext() {
+        while(true) {
+            if(mMarkIndex >= 0) {
+                if(mIntermarkNext) {
+                    mIntermarkNext = false;
+                    return new MorseSignal(false, mProfile.variation(mProfile.getIntermarkMsec(), mRandom));
+                }
+
+                boolean dash = ((mCode >>> mMarkIndex) & 1) != 0;
+                mMarkIndex--;
+
+                if(mMarkIndex >= 0) mIntermarkNext = true;
+                else mGap = GAP_CHAR;
+
+                return new MorseSignal(true, mProfile.variation(dash ? mProfile.getDashMsec() : mProfile.getDotMsec(), mRandom));
+            }
+
+            int token = nextToken();
+            if(token == TOKEN_SPACE) {
+                mGap = GAP_WORD;
+            }
+            else if(token == TOKEN_END) {
+                return takeGap();
+            }
+            else if(token != MorseConstants.NO_CODE) {
+                mCode = token;
+                mUnrecordedCharacters++;
+                mMarkIndex = MorseConstants.codeLength(token) - 1;
+
+                MorseSignal gap = takeGap();
+                if(gap != null) return gap;
+            }
+        }
+    }
+
+    private MorseSignal takeGap() {
+        int gap = mGap;
+        mGap = GAP_NONE;
+
+        if(gap == GAP_CHAR) return new MorseSignal(false, mProfile.variation(mProfile.getCharSpaceMsec(), mRandom));
+        if(gap == GAP_WORD) return new MorseSignal(false, mProfile.variation(mProfile.getWordSpaceMsec(), mRandom));
+        return null;
+    }
+
+    /**
+     * Sends the characters of a CharSequence.
+     */
+    static class OfText extends MorseSignalIterator {
+        private final CharSequence mText;
+        private int mIndex;
+
+        OfText(MorseProfile profile, SplittableRandom random, CharSequence text) {
+            super(profile, random);
+            mText = text;
+        }
+
+        @Override
+        int nextToken() {
+            if(mIndex >= mText.length()) return TOKEN_END;
+
+            char c = mText.charAt(mIndex++);
+            return c == ' ' ? TOKEN_SPACE : MorseConstants.encode(c);
+        }
+    }
+
+    /**
+     * Sends the characters read from a Reader, a buffer at a time. Read errors are thrown as
+     * {@link UncheckedIOException}s.
+     */
+    static class OfReader extends MorseSignalIterator {
+        private final Reader mReader;
+        private final char[] mBuffer = new char[4096];
+        private int mIndex;
+        private int mLength;
+
+        OfReader(MorseProfile profile, SplittableRandom random, Reader reader) {
+            super(profile, random);
+            mReader = reader;
+        }
+
+        @Override
+        int nextToken() {
+            if(mIndex >= mLength) {
+                if(mLength < 0) return TOKEN_END;
+
+                try {
+                    mLength = mReader.read(mBuffer);
+                    mIndex = 0;
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+
+                if(mLength < 0) return TOKEN_END;
+                if(mLength == 0) return MorseConstants.NO_CODE;
+            }
+
+            char c = mBuffer[mIndex++];
+            return c == ' ' ? TOKEN_SPACE : MorseConstants.encode(c);
+        }
+    }
+
+    /**
+     * Sends a sequence of MorseCharacters.
+     */
+    static class OfCharacters extends MorseSignalIterator {
+        private final Iterator<MorseCharacter> mCharacters;
+
+        OfCharacters(MorseProfile profile, SplittableRandom random, Iterator<MorseCharacter> characters) {
+            super(profile, random);
+            mCharacters = characters;
+        }
+
+        @Override
+        int nextToken() {
+            if(!mCharacters.hasNext()) return TOKEN_END;
+
+            MorseCharacter character = mCharacters.next();
+            if(character.character != null) {
+                if(character.character.equals(" ")) return TOKEN_SPACE;
+                if(character.character.length() == 1) return MorseConstants.encode(character.character.charAt(0));
+            }
+            else if(character.prosign != null) {
+                int[] prosignSignal = MorseConstants.lookupProsign(character.prosign);
+                if(prosignSignal != null) return MorseConstants.pack(prosignSignal);
+            }
+
+            return MorseConstants.NO_CODE;
+        }
+    }
+}
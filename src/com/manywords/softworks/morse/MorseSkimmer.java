@@ -0,0 +1,355 @@
+package com.manywords.softworks.morse;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Decodes every Morse signal in a band of 16-bit PCM audio at once, such as the output of a
+ * receiver tuned to a busy stretch of band.
+ * <br /><br />
+ * The audio is cut into overlapping frames and transformed once per frame, rather than once per
+ * signal. Bins which stand well above the band's noise become channels, each with its own
+ * {@link MorseToneDetector} keying a {@link MorseKey} on a {@link MorseVirtualClock}, and
+ * channels which fall silent for long enough are flushed and dropped.
+ * <br /><br />
+ * Frames are handled in batches. The transforms for a batch are spread across a ForkJoinPool,
+ * then new signals are found, then the channels step through the batch's spectra in parallel,
+ * so throughput scales with the number of cores, and the cost of each additional signal is a
+ * few operations per frame.
+ * <br /><br />
+ * Audio must be supplied from one thread at a time. Characters are delivered to the
+ * {@link Listener} from the pool's threads, in order for each channel, but concurrently
+ * for different channels.
+ */
+public class MorseSkimmer {
+    /**
+     * A callback by which clients receive characters decoded by a skimmer.
+     */
+    public interface Listener {
+        /**
+         * A channel has received a Morse character.
+         * @param frequencyHz The center frequency of the channel in Hz.
+         * @param c The received character.
+         */
+        void morseReceived(double frequencyHz, MorseCharacter c);
+    }
+
+    public static final int DEFAULT_FFT_SIZE = 256;
+    public static final int DEFAULT_HOP = 64;
+    public static final double DEFAULT_LOW_HZ = 300;
+    public static final double DEFAULT_HIGH_HZ = 3000;
+    public static final long DEFAULT_IDLE_MSEC = 30000;
+
+    // Frames per batch
+    private static final int BATCH_FRAMES = 64;
+
+    // A bin's average power must be this many times the band's median to start a channel, and
+    // its level must be at least this far above silence, relative to full scale
+    private static final double DETECTION_THRESHOLD = 10;
+    private static final double MIN_LEVEL = 0.001;
+
+    // Frames per transform task, and channels per detection task
+    private static final int FRAME_GRAIN = 4;
+    private static final int CHANNEL_GRAIN = 2;
+
+    private final Listener mListener;
+    private final float mSampleRate;
+    private final int mFftSize;
+    private final int mHop;
+    private final MorseDecoder mSettings;
+    private final ForkJoinPool mPool;
+    private final MorseFft mFft;
+
+    private final double[] mSamples;
+    private int mFill;
+    private long mFrame;
+
+    private final double[][] mSpectra;
+    private final double[][] mRe;
+    private final double[][] mIm;
+    private final double[] mAverages;
+    private final double[] mSorted;
+
+    private int mLowBin;
+    private int mHighBin;
+    private long mIdleFrames;
+
+    // Channels by bin, and in a list for the detection tasks
+    private final Channel[] mChannelsByBin;
+    private final List<Channel> mChannels = new ArrayList<>();
+
+    /**
+     * Create a skimmer with 256-point transforms every 64 samples, on the common pool.
+     * @param listener The listener to receive decoded characters.
+     * @param sampleRate The sample rate in samples per second.
+     */
+    public MorseSkimmer(Listener listener, float sampleRate) {
+        this(listener, sampleRate, DEFAULT_FFT_SIZE, DEFAULT_HOP, new MorseDecoder(), ForkJoinPool.commonPool());
+    }
+
+    /**
+     *
+     * @param listener The listener to receive decoded characters.
+     * @param sampleRate The sample rate in samples per second.
+     * @param fftSize The transform size, a power of two. Larger transforms separate signals
+     *                which are closer together.
+     * @param hop The number of samples between frames, at most the transform size. Smaller
+     *            hops time the key more precisely.
+     * @param settings A decoder whose speed settings are applied to each new channel.
+     * @param pool The pool on which to transform frames and decode channels.
+     */
+    public MorseSkimmer(Listener listener, float sampleRate, int fftSize, int hop, MorseDecoder settings, ForkJoinPool pool) {
+        if(hop <= 0 || hop > fftSize) throw new IllegalArgumentException("Hop must be between 1 and the FFT size");
+
+        mListener = listener;
+        mSampleRate = sampleRate;
+        mFft = new MorseFft(fftSize);
+        mFftSize = fftSize;
+        mHop = hop;
+        mSettings = settings;
+        mPool = pool;
+
+        mSamples = new double[fftSize - hop + BATCH_FRAMES * hop];
+
+        mSpectra = new double[BATCH_FRAMES][fftSize / 2];
+        mRe = new double[BATCH_FRAMES][fftSize];
+        mIm = new double[BATCH_FRAMES][fftSize];
+        mAverages = new double[fftSize / 2];
+        mSorted = new double[fftSize / 2];
+        mChannelsByBin = new Channel[fftSize / 2];
+
+        setFrequencyRange(DEFAULT_LOW_HZ, DEFAULT_HIGH_HZ);
+        setIdleTimeout(DEFAULT_IDLE_MSEC);
+    }
+
+    /**
+     * Set the band in which to look for new signals. Existing channels are unaffected.
+     * @param lowHz The lowest frequency in Hz.
+     * @param highHz The highest frequency in Hz.
+     */
+    public void setFrequencyRange(double lowHz, double highHz) {
+        mLowBin = Math.max(1, (int) Math.ceil(lowHz * mFftSize / mSampleRate));
+        mHighBin = Math.min(mFftSize / 2 - 2, (int) Math.floor(highHz * mFftSize / mSampleRate));
+        if(mLowBin > mHighBin) throw new IllegalArgumentException("Frequency range contains no bins");
+    }
+
+    /**
+     * Set how long a channel's signal may be gone before it is flushed and dropped.
+     * @param idleMsec The idle time in milliseconds.
+     */
+    public void setIdleTimeout(long idleMsec) {
+        mIdleFrames = Math.max(1, (long) (idleMsec * (double) mSampleRate / 1000 / mHop));
+    }
+
+    /**
+     *
+     * @return The number of signals currently being decoded.
+     */
+    public int getChannelCount() {
+        return mChannels.size();
+    }
+
+    /**
+     *
+     * @return The width of each channel in Hz.
+     */
+    public double getBinWidth() {
+        return mSampleRate / mFftSize;
+    }
+
+    /**
+     * Process samples from an array.
+     * @param samples The samples.
+     * @param offset The index of the first sample to process.
+     * @param length The number of samples to process.
+     */
+    public void process(short[] samples, int offset, int length) {
+        int end = offset + length;
+        for(int i = offset; i < end; i++) {
+            mSamples[mFill++] = samples[i];
+            if(mFill == mSamples.length) processBatch(BATCH_FRAMES);
+        }
+    }
+
+    /**
+     * Process 16-bit samples from a buffer of interleaved frames, in the buffer's byte order,
+     * from its position to its limit. Only the first sample of each frame is used. The buffer's
+     * position is not changed.
+     * @param samples The frames.
+     * @param frameSize The number of bytes in each frame.
+     */
+    public void process(ByteBuffer samples, int frameSize) {
+        int end = samples.limit() - 1;
+        for(int i = samples.position(); i < end; i += frameSize) {
+            mSamples[mFill++] = samples.getShort(i);
+            if(mFill == mSamples.length) processBatch(BATCH_FRAMES);
+        }
+    }
+
+    /**
+     * Process the samples buffered so far, then flush and drop every channel.
+     */
+    public void finish() {
+        if(mFill >= mFftSize) processBatch((mFill - mFftSize) / mHop + 1);
+
+        for(Channel channel : mChannels) {
+            channel.flush();
+            mChannelsByBin[channel.mBin] = null;
+        }
+        mChannels.clear();
+    }
+
+    private void processBatch(int frames) {
+        mPool.invoke(new TransformTask(0, frames));
+        findSignals(frames);
+        if(!mChannels.isEmpty()) mPool.invoke(new DetectTask(0, mChannels.size(), frames));
+
+        mFrame += frames;
+        evictIdle();
+
+        // Keep the overlap between the last frame and the next
+        int used = frames * mHop;
+        System.arraycopy(mSamples, used, mSamples, 0, mFill - used);
+        mFill -= used;
+    }
+
+    private void findSignals(int frames) {
+        for(int bin = mLowBin - 1; bin <= mHighBin + 1; bin++) {
+            double total = 0;
+            for(int f = 0; f < frames; f++) {
+                total += mSpectra[f][bin];
+            }
+            mAverages[bin] = total / frames;
+        }
+
+        // Most of the band is noise, so its median is a fair noise floor. Averaging over the
+        // batch keeps key clicks, which are brief but wide, from starting channels.
+        int bins = mHighBin - mLowBin + 1;
+        System.arraycopy(mAverages, mLowBin, mSorted, 0, bins);
+        Arrays.sort(mSorted, 0, bins);
+
+        double minPower = MIN_LEVEL * Short.MAX_VALUE * mFftSize / 4;
+        double threshold = Math.max(mSorted[bins / 2] * DETECTION_THRESHOLD, minPower * minPower);
+
+        for(int bin = mLowBin; bin <= mHighBin; bin++) {
+            double average = mAverages[bin];
+            if(average <= threshold || average < mAverages[bin - 1] || average < mAverages[bin + 1]) continue;
+            if(mChannelsByBin[bin - 1] != null || mChannelsByBin[bin] != null || mChannelsByBin[bin + 1] != null) continue;
+
+            Channel channel = new Channel(bin);
+            mChannelsByBin[bin] = channel;
+            mChannels.add(channel);
+        }
+    }
+
+    private void evictIdle() {
+        for(int i = mChannels.size() - 1; i >= 0; i--) {
+            Channel channel = mChannels.get(i);
+            if(mFrame - channel.mLastActiveFrame > mIdleFrames) {
+                channel.flush();
+                mChannelsByBin[channel.mBin] = null;
+                mChannels.remove(i);
+            }
+        }
+    }
+
+    /**
+     * One signal: a detector reading its bin of each frame's spectrum, and the key it drives.
+     */
+    private class Channel implements MorseListener {
+        private final int mBin;
+        private final double mFrequencyHz;
+        private final MorseVirtualClock mClock = new MorseVirtualClock();
+        private final MorseToneDetector mDetector;
+        private long mLastActiveFrame;
+
+        Channel(int bin) {
+            mBin = bin;
+            mFrequencyHz = (double) bin * mSampleRate / mFftSize;
+            mLastActiveFrame = mFrame;
+
+            MorseKey key = mSettings.newKey(this, mClock);
+            long startTime = (long) (mFrame * mHop * 1000.0 / mSampleRate);
+            mDetector = new MorseToneDetector(key, mSampleRate, mFrequencyHz, mHop, startTime);
+        }
+
+        void detect(int frames) {
+            // Scale so a full-scale tone reads about 1, as it does for a standalone detector
+            double scale = 4.0 / mFftSize / Short.MAX_VALUE;
+
+            for(int f = 0; f < frames; f++) {
+                mDetector.addLevel(Math.sqrt(mSpectra[f][mBin]) * scale);
+                if(mDetector.isKeyDown()) mLastActiveFrame = mFrame + f + 1;
+            }
+
+            // Let char and word deadlines fall due between batches
+            mClock.advanceTo(mDetector.getCurrentTime());
+        }
+
+        void flush() {
+            mDetector.finish();
+            mClock.advanceTo(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void morseReceived(MorseCharacter c) {
+            mListener.morseReceived(mFrequencyHz, c);
+        }
+    }
+
+    private class TransformTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int mStart;
+        private final int mEnd;
+
+        TransformTask(int start, int end) {
+            mStart = start;
+            mEnd = end;
+        }
+
+        @Override
+        protected void compute() {
+            if(mEnd - mStart > FRAME_GRAIN) {
+                int middle = (mStart + mEnd) >>> 1;
+                invokeAll(new TransformTask(mStart, middle), new TransformTask(middle, mEnd));
+                return;
+            }
+
+            for(int f = mStart; f < mEnd; f++) {
+                mFft.powerSpectrum(mSamples, f * mHop, mRe[f], mIm[f], mSpectra[f]);
+            }
+        }
+    }
+
+    private class DetectTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int mStart;
+        private final int mEnd;
+        private final int mFrames;
+
+        DetectTask(int start, int end, int frames) {
+            mStart = start;
+            mEnd = end;
+            mFrames = frames;
+        }
+
+        @Override
+        protected void compute() {
+            if(mEnd - mStart > CHANNEL_GRAIN) {
+                int middle = (mStart + mEnd) >>> 1;
+                invokeAll(new DetectTask(mStart, middle, mFrames), new DetectTask(middle, mEnd, mFrames));
+                return;
+            }
+
+            for(int i = mStart; i < mEnd; i++) {
+                mChannels.get(i).detect(mFrames);
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.manywords.softworks.morse;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Decodes one long signal or recording in parallel, for {@link MorseDecoder}.
+ * <br /><br />
+ * Recordings are first turned into signals by detecting the tone in long sections at once.
+ * Each section's detector starts a few seconds early, so its levels have settled by the time
+ * its events count, and the sections' events are joined where they meet.
+ * <br /><br />
+ * Signals are then cut into pieces at silences which a {@link MorseKey} would treat as a break
+ * in transmission: such a silence ends the word before it, and is not counted in the key's
+ * stats, so only the key's speed carries over from one piece to the next. Each piece is decoded
+ * by its own key, starting from a quick estimate of the piece's own speed.
+ */
+class MorseSplitDecoder {
+    // Pieces are at least this long, so each is worth a task of its own
+    private static final long MIN_PIECE_MSEC = 60 * 1000;
+
+    // Marks used to estimate the speed of a piece
+    private static final int ESTIMATE_MARKS = 64;
+
+    // Recordings are detected in sections of this length, each starting this much early
+    private static final long SECTION_MSEC = 10 * 60 * 1000;
+    private static final long LEAD_IN_MSEC = 5000;
+
+    private final MorseDecoder mSettings;
+    private final ForkJoinPool mPool;
+
+    MorseSplitDecoder(MorseDecoder settings, ForkJoinPool pool) {
+        // Tasks only read the settings, so they may share one copy
+        mSettings = new MorseDecoder(settings);
+        mPool = pool;
+    }
+
+    List<MorseCharacter> decode(List<MorseSignal> input) {
+        // Pieces are found and cut by index, so a linked list would make this quadratic
+        final List<MorseSignal> signal = input instanceof RandomAccess ? input : new ArrayList<>(input);
+
+        long splitSilence = mSettings.newKey(null, new MorseVirtualClock()).getSplitSilence();
+
+        // Each piece runs from a start index to an end index, exclusive of the silence between
+        final List<int[]> pieces = new ArrayList<>();
+        int start = 0;
+        long elapsed = 0;
+        for(int i = 0; i < signal.size(); i++) {
+            MorseSignal s = signal.get(i);
+            if(!s.on && s.duration >= splitSilence && elapsed >= MIN_PIECE_MSEC) {
+                pieces.add(new int[] {start, i});
+                start = i + 1;
+                elapsed = 0;
+            }
+            else {
+                elapsed += s.duration;
+            }
+        }
+        pieces.add(new int[] {start, signal.size()});
+
+        final List<List<MorseCharacter>> results = new ArrayList<>(pieces.size());
+        for(int i = 0; i < pieces.size(); i++) {
+            results.add(new ArrayList<MorseCharacter>());
+        }
+
+        mPool.invoke(new Splitter(0, pieces.size(), new Task() {
+            @Override
+            public void run(int index) {
+                int[] piece = pieces.get(index);
+                int start = piece[0];
+
+                // The first piece starts where a single key would
+                MorseSpeed.Group speed = null;
+                if(index > 0 && mSettings.getAdaptiveSpeed()) {
+                    speed = estimateSpeed(signal.subList(start, piece[1]));
+
+                    // A blip of noise in the silence before a piece would otherwise be the new
+                    // key's first impression of its speed
+                    while(speed != null && start + 1 < piece[1] && signal.get(start).on && signal.get(start).duration < speed.markSpeed.dotMsec / 4) {
+                        start += 2;
+                    }
+                }
+
+                List<MorseSignal> part = signal.subList(start, piece[1]);
+
+                final List<MorseCharacter> result = results.get(index);
+                mSettings.decode(part.iterator(), new MorseListener() {
+                    @Override
+                    public void morseReceived(MorseCharacter c) {
+                        result.add(c);
+                    }
+                }, speed);
+            }
+        }));
+
+        List<MorseCharacter> result = new ArrayList<>();
+        for(List<MorseCharacter> part : results) {
+            result.addAll(part);
+        }
+        return result;
+    }
+
+    List<MorseSignal> detect(final MorseRecording recording, final double toneHz) throws IOException {
+        final float sampleRate = recording.getFormat().getSampleRate();
+        final long frames = recording.getFrameCount();
+
+        // Sections start on block boundaries, so every detector measures the same blocks
+        final int blockSize = (int) Math.round(sampleRate * MorseToneDetector.DEFAULT_BLOCK_MSEC / 1000);
+        long section = (long) (SECTION_MSEC * sampleRate / 1000);
+        final long sectionFrames = Math.max(blockSize, section - section % blockSize);
+        long leadIn = (long) (LEAD_IN_MSEC * sampleRate / 1000);
+        final long leadInFrames = leadIn - leadIn % blockSize;
+
+        final int sections = (int) Math.max(1, (frames + sectionFrames - 1) / sectionFrames);
+        final KeyEvents[] events = new KeyEvents[sections];
+
+        try {
+            mPool.invoke(new Splitter(0, sections, new Task() {
+                @Override
+                public void run(int index) {
+                    long start = index * sectionFrames;
+                    long end = Math.min(frames, start + sectionFrames);
+                    long from = Math.max(0, start - leadInFrames);
+
+                    KeyEvents sectionEvents = new KeyEvents(toMsec(start, sampleRate));
+                    MorseToneDetector detector = new MorseToneDetector(sectionEvents, sampleRate, toneHz, blockSize, toMsec(from, sampleRate));
+
+                    try {
+                        recording.process(detector, from, end);
+                    }
+                    catch(IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+
+                    if(end == frames) detector.finish();
+                    events[index] = sectionEvents;
+                }
+            }));
+        }
+        catch(UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        // Join the sections, dropping any press or release which repeats the state where the
+        // last section left the key
+        List<MorseSignal> signal = new ArrayList<>();
+        boolean down = false;
+        long lastEvent = 0;
+
+        for(KeyEvents sectionEvents : events) {
+            for(int i = 0; i < sectionEvents.mSize; i++) {
+                long event = sectionEvents.mEvents[i];
+                boolean press = (event & 1) != 0;
+                long timestamp = event >> 1;
+                if(press == down) continue;
+
+                // The silence before the first press only offsets the signal from the start
+                if(!press || !signal.isEmpty()) signal.add(new MorseSignal(!press, timestamp - lastEvent));
+                down = press;
+                lastEvent = timestamp;
+            }
+        }
+
+        return signal;
+    }
+
+    private static long toMsec(long frame, float sampleRate) {
+        return (long) (frame * 1000.0 / sampleRate);
+    }
+
+    /**
+     * Estimate the speed of a signal by dividing its first few marks into dots and dashes.
+     * @return The estimated speed, or null if the marks are all of one kind.
+     */
+    static MorseSpeed.Group estimateSpeed(List<MorseSignal> signal) {
+        long[] marks = new long[ESTIMATE_MARKS];
+        int count = 0;
+        for(MorseSignal s : signal) {
+            if(count == marks.length) break;
+            if(s.on) marks[count++] = s.duration;
+        }
+        if(count < 2) return null;
+
+        Arrays.sort(marks, 0, count);
+        double dot = marks[0];
+        double dash = marks[count - 1];
+
+        // Two-means, starting from the extremes
+        for(int trial = 0; trial < 10; trial++) {
+            double threshold = (dot + dash) / 2;
+            double dotTotal = 0, dashTotal = 0;
+            int dots = 0;
+            for(int i = 0; i < count; i++) {
+                if(marks[i] < threshold) {
+                    dotTotal += marks[i];
+                    dots++;
+                }
+                else dashTotal += marks[i];
+            }
+            if(dots == 0 || dots == count) return null;
+
+            dot = dotTotal / dots;
+            dash = dashTotal / (count - dots);
+        }
+
+        if(dash < 2 * dot) return null;
+        return new MorseSpeed.Group(new MorseSpeed((int) Math.round((dot + dash / 3) / 2)));
+    }
+
+    private interface Task {
+        void run(int index);
+    }
+
+    /**
+     * Splits a range of indices in half until one index remains, then runs the task for it.
+     */
+    private static class Splitter extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int mStart;
+        private final int mEnd;
+        private final Task mTask;
+
+        Splitter(int start, int end, Task task) {
+            mStart = start;
+            mEnd = end;
+            mTask = task;
+        }
+
+        @Override
+        protected void compute() {
+            if(mEnd - mStart == 1) {
+                mTask.run(mStart);
+            }
+            else if(mEnd - mStart > 1) {
+                int middle = (mStart + mEnd) >>> 1;
+                invokeAll(new Splitter(mStart, middle, mTask), new Splitter(middle, mEnd, mTask));
+            }
+        }
+    }
+
+    /**
+     * Records the key presses and releases from one section of a recording, from its start.
+     */
+    private static class KeyEvents implements MorseKeyListener {
+        private final long mStartTime;
+        private long[] mEvents = new long[256];
+        private int mSize;
+
+        KeyEvents(long startTime) {
+            mStartTime = startTime;
+        }
+
+        @Override
+        public void down(long timestamp) {
+            add(timestamp, 1);
+        }
+
+        @Override
+        public void up(long timestamp) {
+            add(timestamp, 0);
+        }
+
+        private void add(long timestamp, int press) {
+            // Events in the lead-in only settle the detector
+            if(timestamp < mStartTime) return;
+
+            if(mSize == mEvents.length) mEvents = Arrays.copyOf(mEvents, mSize * 2);
+            mEvents[mSize++] = timestamp << 1 | press;
+        }
+    }
+}
@@ -1,16 +1,94 @@
 package com.manywords.softworks.morse;
 
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
 /**
  * Statistics on recent Morse signal elements.
+ * <br /><br />
+ * For each kind of element, MorseStats keeps a rolling average, and a window of the most recent
+ * lengths from which percentiles are taken. A few outliers, like a long pause in the middle of a
+ * character, move the average but not the median.
+ * <br /><br />
+ * Statistics are updated by the {@link MorseKey} which owns them. The averages may be read from
+ * any thread; to read percentiles, or several statistics which agree with one another, take a
+ * {@link #snapshot()}.
  */
 public class MorseStats {
     private static final double ROLLING_LENGTH = 15;
 
-    private double dotAverage;
-    private double dashAverage;
-    private double markAverage;
-    private double charAverage;
-    private double wordAverage;
+    // Lengths kept per kind of element for percentiles
+    static final int WINDOW_LENGTH = 32;
+
+    /**
+     * Statistics on the recent lengths of one kind of element. Lengths are in milliseconds.
+     */
+    public static final class Window {
+        /** The number of lengths in the window, up to {@link MorseStats#WINDOW_LENGTH}. */
+        public final int count;
+        public final double average;
+        public final double p10;
+        public final double median;
+        public final double p90;
+
+        Window(long[] sorted, int count, double average) {
+            this.count = count;
+            this.average = average;
+            this.p10 = percentile(sorted, count, 0.1, average);
+            this.median = percentile(sorted, count, 0.5, average);
+            this.p90 = percentile(sorted, count, 0.9, average);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.0f/%.0f/%.0f avg %.1f (%d)", p10, median, p90, average, count);
+        }
+    }
+
+    /**
+     * A consistent copy of a key's statistics at one moment.
+     */
+    public static final class Snapshot {
+        public final Window dots;
+        public final Window dashes;
+        /** Silences between the marks of a character. */
+        public final Window markSilences;
+        /** Silences between characters. */
+        public final Window charSilences;
+        /** Silences between words. */
+        public final Window wordSilences;
+
+        Snapshot(Window dots, Window dashes, Window markSilences, Window charSilences, Window wordSilences) {
+            this.dots = dots;
+            this.dashes = dashes;
+            this.markSilences = markSilences;
+            this.charSilences = charSilences;
+            this.wordSilences = wordSilences;
+        }
+
+        @Override
+        public String toString() {
+            return "dots " + dots + ", dashes " + dashes + ", mark " + markSilences + ", char " + charSilences + ", word " + wordSilences;
+        }
+    }
+
+    // Writes to the windows are bracketed by a write lock, so readers on other threads can copy
+    // them optimistically and try again if the key wrote meanwhile.
+    private final StampedLock mLock = new StampedLock();
+    private final Ring dots = new Ring();
+    private final Ring dashes = new Ring();
+    private final Ring markSilences = new Ring();
+    private final Ring charSilences = new Ring();
+    private final Ring wordSilences = new Ring();
+
+    // Scratch space for the key's own percentile queries
+    private final long[] sorted = new long[WINDOW_LENGTH];
+
+    private volatile double dotAverage;
+    private volatile double dashAverage;
+    private volatile double markAverage;
+    private volatile double charAverage;
+    private volatile double wordAverage;
 
     private double wordsPerMinute;
     private long charStart;
@@ -19,61 +97,74 @@ public class MorseStats {
     private int dashesSeen = 0;
     private int markSeen = 0;
 
+    /**
+     * Start the averages from a known speed, rather than from the first element of each kind.
+     * @param speed The speed.
+     */
+    void seed(MorseSpeed.Group speed) {
+        long stamp = mLock.writeLock();
+        dotAverage = speed.markSpeed.dotMsec;
+        dashAverage = speed.markSpeed.dashMsec;
+        markAverage = speed.markSpeed.dotMsec;
+        charAverage = speed.charSpeed.dashMsec;
+        wordAverage = speed.wordSpeed.getSpaceLength();
+        mLock.unlockWrite(stamp);
+    }
+
     boolean canAdapt() {
         return dotsSeen > 5 && dashesSeen > 5 && markSeen > 5;
     }
 
     double addDot(long duration) {
+        long stamp = mLock.writeLock();
         dotsSeen++;
-        if(dotAverage == 0) {
-            dotAverage = (double) duration;
-        }
-        else {
-            dotAverage = dotAverage * ((ROLLING_LENGTH - 1) / ROLLING_LENGTH) + (double) duration * (1 / ROLLING_LENGTH);
-        }
+        dotAverage = roll(dotAverage, duration);
+        dots.add(duration);
+        mLock.unlockWrite(stamp);
         return dotAverage;
     }
 
     double addDash(long duration) {
+        long stamp = mLock.writeLock();
         dashesSeen++;
-        if(dashAverage == 0) {
-            dashAverage = (double) duration;
-        }
-        else {
-            dashAverage = dashAverage * ((ROLLING_LENGTH - 1) / ROLLING_LENGTH) + (double) duration * (1 / ROLLING_LENGTH);
-        }
+        dashAverage = roll(dashAverage, duration);
+        dashes.add(duration);
+        mLock.unlockWrite(stamp);
         return dashAverage;
     }
 
     double addMarkSilence(long duration) {
+        long stamp = mLock.writeLock();
         markSeen++;
-        if(markAverage == 0) {
-            markAverage = duration;
-        }
-        else {
-            markAverage = markAverage * ((ROLLING_LENGTH - 1) / ROLLING_LENGTH) + (double) duration * (1 / ROLLING_LENGTH);
-        }
+        markAverage = roll(markAverage, duration);
+        markSilences.add(duration);
+        mLock.unlockWrite(stamp);
         return markAverage;
     }
 
     double addCharSilence(long duration) {
-        if(charAverage == 0) {
-            charAverage = (double) duration;
-        }
-        else {
-            charAverage = charAverage * ((ROLLING_LENGTH - 1) / ROLLING_LENGTH) + (double) duration * (1 / ROLLING_LENGTH);
-        }
+        long stamp = mLock.writeLock();
+        charAverage = roll(charAverage, duration);
+        charSilences.add(duration);
+        mLock.unlockWrite(stamp);
         return charAverage;
     }
 
     double addWordSilence(long duration) {
-        if(wordAverage == 0) {
-            wordAverage = (double) duration;
+        long stamp = mLock.writeLock();
+        wordAverage = roll(wordAverage, duration);
+        wordSilences.add(duration);
+        mLock.unlockWrite(stamp);
+        return wordAverage;
+    }
+
+    private static double roll(double average, long duration) {
+        if(average == 0) {
+            return (double) duration;
         }
         else {
-            wordAverage = wordAverage * ((ROLLING_LENGTH - 1) / ROLLING_LENGTH) + (double) duration * (1 / ROLLING_LENGTH);
+            return average * ((ROLLING_LENGTH - 1) / ROLLING_LENGTH) + (double) duration * (1 / ROLLING_LENGTH);
         }
-        return wordAverage;
     }
 
     /**
@@ -127,11 +218,124 @@ public class MorseStats {
     void reset(MorseSpeed markSpeed, MorseSpeed charSpeed, MorseSpeed wordSpeed) {
         dotsSeen = dashesSeen = markSeen = 0;
 
+        long stamp = mLock.writeLock();
+        dots.clear();
+        dashes.clear();
+        markSilences.clear();
+        charSilences.clear();
+        wordSilences.clear();
+
         dotAverage = markSpeed.dotMsec;
         dashAverage = markSpeed.dashMsec;
         markAverage = markSpeed.dotMsec;
 
         charAverage = charSpeed.dashMsec;
         wordAverage = wordSpeed.getSpaceLength();
+        mLock.unlockWrite(stamp);
+    }
+
+    /**
+     * Take a consistent copy of these statistics. May be called from any thread, and does not
+     * block the key.
+     * @return The statistics.
+     */
+    public Snapshot snapshot() {
+        long[][] copies = new long[5][WINDOW_LENGTH];
+        int[] counts = new int[5];
+        double[] averages = new double[5];
+
+        long stamp = mLock.tryOptimisticRead();
+        if(stamp != 0) {
+            copy(copies, counts, averages);
+        }
+        if(stamp == 0 || !mLock.validate(stamp)) {
+            stamp = mLock.readLock();
+            try {
+                copy(copies, counts, averages);
+            }
+            finally {
+                mLock.unlockRead(stamp);
+            }
+        }
+
+        Window[] windows = new Window[5];
+        for(int i = 0; i < windows.length; i++) {
+            Arrays.sort(copies[i], 0, counts[i]);
+            windows[i] = new Window(copies[i], counts[i], averages[i]);
+        }
+        return new Snapshot(windows[0], windows[1], windows[2], windows[3], windows[4]);
+    }
+
+    private void copy(long[][] copies, int[] counts, double[] averages) {
+        Ring[] rings = {dots, dashes, markSilences, charSilences, wordSilences};
+        for(int i = 0; i < rings.length; i++) {
+            counts[i] = rings[i].count;
+            System.arraycopy(rings[i].values, 0, copies[i], 0, WINDOW_LENGTH);
+        }
+        averages[0] = dotAverage;
+        averages[1] = dashAverage;
+        averages[2] = markAverage;
+        averages[3] = charAverage;
+        averages[4] = wordAverage;
+    }
+
+    // The key's own queries, which need no lock because only the key writes.
+
+    double getDotMedian() {
+        return median(dots, dotAverage);
+    }
+
+    double getDashMedian() {
+        return median(dashes, dashAverage);
+    }
+
+    double getMarkMedian() {
+        return median(markSilences, markAverage);
+    }
+
+    double getCharMedian() {
+        return median(charSilences, charAverage);
+    }
+
+    double getWordMedian() {
+        return median(wordSilences, wordAverage);
+    }
+
+    private double median(Ring ring, double average) {
+        System.arraycopy(ring.values, 0, sorted, 0, ring.count);
+        Arrays.sort(sorted, 0, ring.count);
+        return percentile(sorted, ring.count, 0.5, average);
+    }
+
+    /**
+     * A percentile of some sorted lengths, by linear interpolation between the nearest two, or
+     * the average if there are no lengths yet.
+     */
+    private static double percentile(long[] sorted, int count, double fraction, double average) {
+        if(count == 0) return average;
+
+        double position = fraction * (count - 1);
+        int below = (int) position;
+        if(below + 1 >= count) return sorted[below];
+        return sorted[below] + (sorted[below + 1] - sorted[below]) * (position - below);
+    }
+
+    /**
+     * The most recent lengths of one kind of element, oldest overwritten first.
+     */
+    private static class Ring {
+        private final long[] values = new long[WINDOW_LENGTH];
+        private int next;
+        private int count;
+
+        void add(long duration) {
+            values[next] = duration;
+            next = (next + 1) % WINDOW_LENGTH;
+            if(count < WINDOW_LENGTH) count++;
+        }
+
+        void clear() {
+            next = count = 0;
+        }
     }
 }
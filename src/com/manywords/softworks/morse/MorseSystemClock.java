@@ -0,0 +1,37 @@
+package com.manywords.softworks.morse;
+
+/**
+ * A {@link MorseClock} which follows the wall clock, firing deadlines from a
+ * {@link MorseScheduler} thread shared by every key which uses it.
+ */
+class MorseSystemClock implements MorseClock {
+    private final MorseScheduler mScheduler;
+
+    MorseSystemClock() {
+        this(null);
+    }
+
+    /**
+     *
+     * @param scheduler The scheduler to fire deadlines from, or null to use the shared scheduler.
+     */
+    MorseSystemClock(MorseScheduler scheduler) {
+        mScheduler = scheduler;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public Deadline newDeadline(Runnable action) {
+        MorseScheduler scheduler = (mScheduler != null ? mScheduler : MorseScheduler.getShared());
+        return scheduler.newDeadline(action);
+    }
+
+    @Override
+    public void advanceTo(long timestamp) {
+        // Real time moves on its own.
+    }
+}
@@ -0,0 +1,301 @@
+package com.manywords.softworks.morse;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Detects a Morse tone in a stream of 16-bit PCM samples, and turns it into timestamped key
+ * presses and releases for a {@link MorseKeyListener}, such as a {@link MorseKey}.
+ * <br /><br />
+ * Samples are taken in blocks, and the tone's level in each block is measured with the Goertzel
+ * algorithm. The detector follows the signal peak and the noise floor separately, and keys down
+ * when the level rises above a threshold between them, so it adapts to fading and changing noise
+ * without manual gain settings. Hysteresis between the key-down and key-up thresholds keeps
+ * noise near the threshold from chattering.
+ * <br /><br />
+ * The noise floor is found by minimum statistics: the lowest smoothed level over the last couple
+ * of seconds, scaled up to the average noise level. Any Morse signal has gaps that short, so the
+ * floor follows the noise up as quickly as down, whether or not a signal is present, and the
+ * detector stays up until the peak stands well clear of it.
+ * <br /><br />
+ * Timestamps are derived from the number of samples processed, counted from a start time, so
+ * a detector feeding a key on a {@link MorseVirtualClock} decodes a recording at CPU speed.
+ * Samples may arrive in blocks of any size; processing allocates nothing. Detectors are not
+ * thread-safe.
+ */
+public class MorseToneDetector {
+    public static final double DEFAULT_BLOCK_MSEC = 5;
+
+    // Level tracking, as a fraction of the distance to the new level per block
+    private static final double PEAK_ATTACK = 0.5;
+    private static final double PEAK_DECAY = 0.002;
+
+    // Smoothing applied to the level before looking for its minimum, short enough that the level
+    // falls to the noise in the gap between two fast dots
+    private static final double NOISE_SMOOTHING = 0.3;
+
+    // The noise floor is the minimum over this long, kept as the minima of a number of
+    // sub-windows so that it costs nothing per block
+    private static final double NOISE_WINDOW_MSEC = 2000;
+    private static final int NOISE_SUBWINDOWS = 8;
+
+    // The minimum of smoothed noise over the window, as a fraction of its average
+    private static final double NOISE_MINIMUM_BIAS = 0.5;
+
+    // Thresholds, as a fraction of the way from the noise floor to the peak
+    private static final double DOWN_THRESHOLD = 0.5;
+    private static final double UP_THRESHOLD = 0.35;
+
+    // The peak must be this far above the noise floor to count as a signal at all. Noise alone
+    // peaks at about three times its average.
+    private static final double MIN_SIGNAL_TO_NOISE = 5;
+
+    private final MorseKeyListener mListener;
+    private final float mSampleRate;
+    private final double mToneHz;
+    private final int mBlockSize;
+    private final double mCoefficient;
+    private final int mSubwindowBlocks;
+
+    private final long mStartTime;
+    private long mSamples;
+
+    // Goertzel state for the block in progress
+    private double mS1;
+    private double mS2;
+    private int mBlockCount;
+
+    private double mLevel;
+    private double mPeak;
+    private double mNoise;
+    private boolean mKeyDown;
+
+    // Minimum statistics for the noise floor
+    private double mSmoothed = -1;
+    private final double[] mMinima = new double[NOISE_SUBWINDOWS];
+    private int mMinimaCount;
+    private int mMinimaIndex;
+    private double mWindowMinimum = Double.MAX_VALUE;
+    private double mSubwindowMinimum = Double.MAX_VALUE;
+    private int mSubwindowCount;
+
+    // Until there is a signal, whether the input began partway through a mark: the loudest
+    // smoothed level before it first fell by half, and when that was
+    private boolean mLeading = true;
+    private double mLeadingPeak;
+    private long mLeadingEnd = -1;
+
+    /**
+     * Create a detector with 5ms blocks, timing events from zero.
+     * @param listener The listener to receive key events.
+     * @param sampleRate The sample rate in samples per second.
+     * @param toneHz The frequency of the tone to detect in Hz.
+     */
+    public MorseToneDetector(MorseKeyListener listener, float sampleRate, double toneHz) {
+        this(listener, sampleRate, toneHz, (int) Math.round(sampleRate * DEFAULT_BLOCK_MSEC / 1000), 0);
+    }
+
+    /**
+     *
+     * @param listener The listener to receive key events.
+     * @param sampleRate The sample rate in samples per second.
+     * @param toneHz The frequency of the tone to detect in Hz.
+     * @param blockSize The number of samples per measurement. Longer blocks reject more noise
+     *                  and nearby signals, but time the key less precisely.
+     * @param startTime The time in milliseconds of the first sample.
+     */
+    public MorseToneDetector(MorseKeyListener listener, float sampleRate, double toneHz, int blockSize, long startTime) {
+        if(blockSize <= 0) throw new IllegalArgumentException("Block size must be positive");
+        if(toneHz <= 0 || toneHz >= sampleRate / 2) throw new IllegalArgumentException("Tone must be between 0 and half the sample rate");
+
+        mListener = listener;
+        mSampleRate = sampleRate;
+        mToneHz = toneHz;
+        mBlockSize = blockSize;
+        mStartTime = startTime;
+
+        mCoefficient = 2 * Math.cos(2 * Math.PI * toneHz / sampleRate);
+
+        double blockMsec = blockSize * 1000.0 / sampleRate;
+        mSubwindowBlocks = Math.max(1, (int) Math.round(NOISE_WINDOW_MSEC / NOISE_SUBWINDOWS / blockMsec));
+    }
+
+    /**
+     * Process samples from an array.
+     * @param samples The samples.
+     * @param offset The index of the first sample to process.
+     * @param length The number of samples to process.
+     */
+    public void process(short[] samples, int offset, int length) {
+        int end = offset + length;
+        for(int i = offset; i < end; i++) {
+            addSample(samples[i]);
+        }
+    }
+
+    /**
+     * Process 16-bit samples from a buffer, in the buffer's byte order, from its position to its
+     * limit. The buffer's position is not changed.
+     * @param samples The samples.
+     */
+    public void process(ByteBuffer samples) {
+        process(samples, 2);
+    }
+
+    /**
+     * Process 16-bit samples from a buffer of interleaved frames, in the buffer's byte order,
+     * from its position to its limit. Only the first sample of each frame is used. The buffer's
+     * position is not changed.
+     * @param samples The frames.
+     * @param frameSize The number of bytes in each frame.
+     */
+    public void process(ByteBuffer samples, int frameSize) {
+        int end = samples.limit() - 1;
+        for(int i = samples.position(); i < end; i += frameSize) {
+            addSample(samples.getShort(i));
+        }
+    }
+
+    /**
+     * Release the key if the tone is present at the end of the input.
+     */
+    public void finish() {
+        if(mKeyDown) {
+            mKeyDown = false;
+            mListener.up(getCurrentTime());
+        }
+    }
+
+    /**
+     *
+     * @return The time in milliseconds at the end of the samples processed so far.
+     */
+    public long getCurrentTime() {
+        return mStartTime + (long) (mSamples * 1000.0 / mSampleRate);
+    }
+
+    /**
+     *
+     * @return The tone level in the most recent block, relative to full scale.
+     */
+    public double getLevel() {
+        return mLevel;
+    }
+
+    /**
+     *
+     * @return The current estimate of the signal peak, relative to full scale.
+     */
+    public double getPeak() {
+        return mPeak;
+    }
+
+    /**
+     *
+     * @return The current estimate of the noise floor, relative to full scale.
+     */
+    public double getNoiseFloor() {
+        return mNoise;
+    }
+
+    public boolean isKeyDown() {
+        return mKeyDown;
+    }
+
+    public double getToneHz() {
+        return mToneHz;
+    }
+
+    /**
+     * Account for a block of samples whose tone level was measured elsewhere, such as one bin
+     * of a {@link MorseSkimmer}'s spectrum.
+     * @param level The tone level in the block, relative to full scale.
+     */
+    void addLevel(double level) {
+        mSamples += mBlockSize;
+        endBlock(level);
+    }
+
+    private void addSample(int sample) {
+        double s0 = sample + mCoefficient * mS1 - mS2;
+        mS2 = mS1;
+        mS1 = s0;
+        mSamples++;
+
+        if(++mBlockCount == mBlockSize) {
+            double power = mS1 * mS1 + mS2 * mS2 - mCoefficient * mS1 * mS2;
+            mS1 = mS2 = 0;
+            mBlockCount = 0;
+
+            // Scale so a full-scale tone reads about 1
+            endBlock(Math.sqrt(Math.max(0, power)) * 2 / mBlockSize / Short.MAX_VALUE);
+        }
+    }
+
+    private void endBlock(double level) {
+        mLevel = level;
+
+        if(level > mPeak) mPeak += (level - mPeak) * PEAK_ATTACK;
+        else mPeak += (level - mPeak) * PEAK_DECAY;
+
+        mNoise = trackNoise(level);
+
+        boolean signal = mPeak > mNoise * MIN_SIGNAL_TO_NOISE;
+        double range = mPeak - mNoise;
+
+        // Events are timed to the start of the block in which the change was seen
+        long blockStart = mStartTime + (long) ((mSamples - mBlockSize) * 1000.0 / mSampleRate);
+
+        if(mLeading) {
+            if(mLeadingEnd < 0) {
+                if(mSmoothed < mLeadingPeak / 2) mLeadingEnd = blockStart;
+                else mLeadingPeak = Math.max(mLeadingPeak, mSmoothed);
+            }
+
+            // Input which starts on a mark has no noise to compare it to until the mark ends,
+            // so it is only found to be a mark afterward
+            if(signal) {
+                mLeading = false;
+                if(mLeadingEnd >= 0 && mLeadingPeak > mNoise + range * DOWN_THRESHOLD) {
+                    mListener.down(mStartTime);
+                    mListener.up(mLeadingEnd);
+                }
+            }
+        }
+
+        if(!mKeyDown && signal && level > mNoise + range * DOWN_THRESHOLD) {
+            mKeyDown = true;
+            mListener.down(blockStart);
+        }
+        else if(mKeyDown && (!signal || level < mNoise + range * UP_THRESHOLD)) {
+            mKeyDown = false;
+            mListener.up(blockStart);
+        }
+    }
+
+    /**
+     * Add a block's level to the minimum statistics.
+     * @return The new noise floor.
+     */
+    private double trackNoise(double level) {
+        if(mSmoothed < 0) mSmoothed = level;
+        else mSmoothed += (level - mSmoothed) * NOISE_SMOOTHING;
+
+        mSubwindowMinimum = Math.min(mSubwindowMinimum, mSmoothed);
+        if(++mSubwindowCount == mSubwindowBlocks) {
+            mMinima[mMinimaIndex] = mSubwindowMinimum;
+            mMinimaIndex = (mMinimaIndex + 1) % NOISE_SUBWINDOWS;
+            if(mMinimaCount < NOISE_SUBWINDOWS) mMinimaCount++;
+
+            mWindowMinimum = Double.MAX_VALUE;
+            for(int i = 0; i < mMinimaCount; i++) {
+                mWindowMinimum = Math.min(mWindowMinimum, mMinima[i]);
+            }
+
+            mSubwindowMinimum = Double.MAX_VALUE;
+            mSubwindowCount = 0;
+        }
+
+        // Until the first sub-window ends, the floor is the lowest level seen so far
+        return Math.min(mWindowMinimum, mSubwindowMinimum) / NOISE_MINIMUM_BIAS;
+    }
+}
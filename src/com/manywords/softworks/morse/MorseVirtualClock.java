@@ -0,0 +1,99 @@
+package com.manywords.softworks.morse;
+
+import java.util.PriorityQueue;
+
+/**
+ * A {@link MorseClock} which only moves when it is told to. Time advances to the timestamp of
+ * each event given to a {@link MorseKey}, and deadlines fire on the calling thread as time
+ * passes them, so a recording can be replayed through the adaptive decoder as quickly as its
+ * events can be read.
+ * <br /><br />
+ * When the recording ends, call {@link #advanceTo(long)} with a time past the last event (or
+ * {@link Long#MAX_VALUE}) to flush the final character and word.
+ * <br /><br />
+ * Virtual clocks are not thread-safe.
+ */
+public class MorseVirtualClock implements MorseClock {
+    private final PriorityQueue<VirtualDeadline> mQueue = new PriorityQueue<>();
+    private long mNow;
+    private long mSequence;
+
+    /**
+     * Start the clock at time zero.
+     */
+    public MorseVirtualClock() {
+        this(0);
+    }
+
+    /**
+     * @param startTime The initial time in milliseconds.
+     */
+    public MorseVirtualClock(long startTime) {
+        mNow = startTime;
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return mNow;
+    }
+
+    @Override
+    public Deadline newDeadline(Runnable action) {
+        return new VirtualDeadline(action);
+    }
+
+    /**
+     * Move the clock forward, firing any deadlines due at or before the given time in order.
+     * Times in the past are ignored.
+     * @param timestamp The new time in milliseconds.
+     */
+    @Override
+    public void advanceTo(long timestamp) {
+        while(!mQueue.isEmpty() && mQueue.peek().mExpiry <= timestamp) {
+            VirtualDeadline deadline = mQueue.poll();
+            if(deadline.mExpiry > mNow) mNow = deadline.mExpiry;
+
+            deadline.mAction.run();
+        }
+
+        if(timestamp > mNow) mNow = timestamp;
+    }
+
+    /**
+     * Move the clock forward by the given amount.
+     * @param millis The number of milliseconds to advance.
+     */
+    public void advanceBy(long millis) {
+        advanceTo(mNow + millis);
+    }
+
+    private class VirtualDeadline implements Deadline, Comparable<VirtualDeadline> {
+        private final Runnable mAction;
+        private long mExpiry;
+        private long mOrder;
+
+        VirtualDeadline(Runnable action) {
+            mAction = action;
+        }
+
+        @Override
+        public void schedule(long timestamp) {
+            mQueue.remove(this);
+
+            mExpiry = timestamp;
+            mOrder = mSequence++;
+            mQueue.add(this);
+        }
+
+        @Override
+        public void cancel() {
+            mQueue.remove(this);
+        }
+
+        @Override
+        public int compareTo(VirtualDeadline o) {
+            if(mExpiry != o.mExpiry) return mExpiry < o.mExpiry ? -1 : 1;
+            return Long.compare(mOrder, o.mOrder);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.manywords.softworks.morse;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/**
+ * An executor which only queues tasks, and runs them on the test's thread when told to, so
+ * tests can see exactly what was scheduled and when it runs.
+ */
+class ManualExecutor implements Executor {
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+
+    @Override
+    public synchronized void execute(Runnable task) {
+        mTasks.add(task);
+    }
+
+    synchronized int getQueuedCount() {
+        return mTasks.size();
+    }
+
+    /**
+     * Run queued tasks, including any they queue, until none are left.
+     * @return The number of tasks run.
+     */
+    int runAll() {
+        int count = 0;
+        while(true) {
+            Runnable task;
+            synchronized(this) {
+                task = mTasks.poll();
+            }
+            if(task == null) return count;
+
+            task.run();
+            count++;
+        }
+    }
+}
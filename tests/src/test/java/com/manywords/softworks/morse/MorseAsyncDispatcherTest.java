@@ -0,0 +1,231 @@
+package com.manywords.softworks.morse;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MorseAsyncDispatcherTest {
+    private final ManualExecutor mExecutor = new ManualExecutor();
+    private final MorseMetrics mMetrics = new MorseMetrics();
+
+    // Batches as the listener received them, as text
+    private final List<String> mBatches = Collections.synchronizedList(new ArrayList<String>());
+
+    private final List<Throwable> mUncaught = Collections.synchronizedList(new ArrayList<Throwable>());
+    private Thread.UncaughtExceptionHandler mOldHandler;
+
+    private final MorseBatchListener mRecorder = new MorseBatchListener() {
+        @Override
+        public void morseReceived(List<MorseCharacter> characters) {
+            mBatches.add(text(characters));
+        }
+    };
+
+    @BeforeEach
+    void catchUncaught() {
+        mOldHandler = Thread.currentThread().getUncaughtExceptionHandler();
+        Thread.currentThread().setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+                mUncaught.add(e);
+            }
+        });
+    }
+
+    @AfterEach
+    void restoreUncaught() {
+        Thread.currentThread().setUncaughtExceptionHandler(mOldHandler);
+    }
+
+    private MorseAsyncDispatcher dispatcher(MorseBatchListener listener, Executor executor, int capacity, int batchSize) {
+        MorseAsyncDispatcher dispatcher = new MorseAsyncDispatcher(listener, executor, capacity, batchSize);
+        dispatcher.setMetrics(mMetrics);
+        return dispatcher;
+    }
+
+    private static String text(List<MorseCharacter> characters) {
+        StringBuilder text = new StringBuilder();
+        for(MorseCharacter c : characters) {
+            text.append(c.character);
+        }
+        return text.toString();
+    }
+
+    private static void send(MorseListener listener, String text) {
+        for(char c : text.toCharArray()) {
+            listener.morseReceived(new MorseCharacter(Character.toString(c)));
+        }
+    }
+
+    @Test
+    void deliversInOrderInBatches() {
+        MorseAsyncDispatcher dispatcher = dispatcher(mRecorder, mExecutor, 16, 2);
+
+        send(dispatcher, "PARIS");
+        assertEquals(1, mExecutor.getQueuedCount());
+        assertTrue(mBatches.isEmpty());
+
+        mExecutor.runAll();
+        assertEquals(List.of("PA", "RI", "S"), mBatches);
+        assertEquals(0, dispatcher.getDroppedCount());
+    }
+
+    @Test
+    void dropsWhenFull() {
+        MorseAsyncDispatcher dispatcher = dispatcher(mRecorder, mExecutor, 4, 64);
+
+        send(dispatcher, "CQ CQ");
+        mExecutor.runAll();
+
+        assertEquals(List.of("CQ C"), mBatches);
+        assertEquals(1, dispatcher.getDroppedCount());
+        assertEquals(1, mMetrics.getCharactersDropped());
+
+        send(dispatcher, "DE");
+        mExecutor.runAll();
+        assertEquals(List.of("CQ C", "DE"), mBatches);
+    }
+
+    @Test
+    void keepsDeliveringAfterListenerThrows() {
+        MorseAsyncDispatcher dispatcher = dispatcher(new MorseBatchListener() {
+            @Override
+            public void morseReceived(List<MorseCharacter> characters) {
+                mRecorder.morseReceived(characters);
+                if(characters.get(0).character.equals("A")) throw new IllegalStateException("Listener failed");
+            }
+        }, mExecutor, 16, 2);
+
+        send(dispatcher, "ABCDE");
+        mExecutor.runAll();
+
+        assertEquals(List.of("AB", "CD", "E"), mBatches);
+        assertEquals(1, dispatcher.getFailedBatchCount());
+        assertEquals(1, mUncaught.size());
+        assertTrue(mUncaught.get(0) instanceof IllegalStateException);
+    }
+
+    @Test
+    void deliversCharactersReceivedDuringDelivery() {
+        final MorseAsyncDispatcher[] dispatcher = new MorseAsyncDispatcher[1];
+        dispatcher[0] = dispatcher(new MorseBatchListener() {
+            @Override
+            public void morseReceived(List<MorseCharacter> characters) {
+                mRecorder.morseReceived(characters);
+                if(mBatches.size() == 1) send(dispatcher[0], "73");
+            }
+        }, mExecutor, 16, 64);
+
+        send(dispatcher[0], "SK");
+        mExecutor.runAll();
+
+        assertEquals(List.of("SK", "73"), mBatches);
+    }
+
+    @Test
+    void retriesAfterRejection() {
+        final boolean[] reject = {true};
+        MorseAsyncDispatcher dispatcher = dispatcher(mRecorder, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if(reject[0]) throw new RejectedExecutionException();
+                mExecutor.execute(command);
+            }
+        }, 16, 64);
+
+        send(dispatcher, "QR");
+        assertEquals(0, mExecutor.getQueuedCount());
+
+        reject[0] = false;
+        send(dispatcher, "Z");
+        mExecutor.runAll();
+
+        assertEquals(List.of("QRZ"), mBatches);
+    }
+
+    @Test
+    void deliversEverythingFromManyThreads() throws InterruptedException {
+        final int threads = 4;
+        final int perThread = 20000;
+
+        // The listener checks that each thread's characters arrive in order, and never runs twice
+        // at once
+        final int[] next = new int[threads];
+        final boolean[] inOrder = {true};
+        final Object busy = new Object();
+        final boolean[] running = {false};
+        final CountDownLatch delivered = new CountDownLatch(threads * perThread);
+        MorseBatchListener listener = new MorseBatchListener() {
+            @Override
+            public void morseReceived(List<MorseCharacter> characters) {
+                synchronized(busy) {
+                    if(running[0]) inOrder[0] = false;
+                    running[0] = true;
+                }
+
+                for(MorseCharacter c : characters) {
+                    String[] parts = c.character.split(":");
+                    int thread = Integer.parseInt(parts[0]);
+                    if(Integer.parseInt(parts[1]) != next[thread]++) inOrder[0] = false;
+                    delivered.countDown();
+                }
+
+                synchronized(busy) {
+                    running[0] = false;
+                }
+            }
+        };
+
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        final MorseAsyncDispatcher dispatcher = dispatcher(listener, pool, threads * perThread, 64);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> senders = new ArrayList<>();
+        for(int t = 0; t < threads; t++) {
+            final int id = t;
+            Thread sender = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch(InterruptedException e) {
+                        return;
+                    }
+
+                    for(int i = 0; i < perThread; i++) {
+                        dispatcher.morseReceived(new MorseCharacter(id + ":" + i));
+                    }
+                }
+            });
+            sender.start();
+            senders.add(sender);
+        }
+
+        start.countDown();
+        for(Thread sender : senders) {
+            sender.join();
+        }
+
+        assertTrue(delivered.await(10, TimeUnit.SECONDS));
+        pool.shutdown();
+
+        assertTrue(inOrder[0]);
+        assertEquals(0, dispatcher.getDroppedCount());
+        for(int t = 0; t < threads; t++) {
+            assertEquals(perThread, next[t]);
+        }
+    }
+}
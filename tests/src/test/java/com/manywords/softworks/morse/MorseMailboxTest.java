@@ -0,0 +1,131 @@
+package com.manywords.softworks.morse;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MorseMailboxTest {
+    @Test
+    void handlesOnPostingThreadInOrder() {
+        final List<Long> handled = new ArrayList<>();
+        final Thread test = Thread.currentThread();
+        final AtomicBoolean elsewhere = new AtomicBoolean();
+
+        MorseMailbox mailbox = new MorseMailbox(4, new MorseMailbox.Handler() {
+            @Override
+            public void handle(long message) {
+                if(Thread.currentThread() != test) elsewhere.set(true);
+                handled.add(message);
+            }
+        });
+
+        for(long i = 0; i < 10; i++) {
+            mailbox.post(i);
+            assertEquals(i + 1, handled.size());
+        }
+
+        assertFalse(elsewhere.get());
+        assertFalse(mailbox.isWriter());
+        for(int i = 0; i < 10; i++) {
+            assertEquals(i, (long) handled.get(i));
+        }
+    }
+
+    @Test
+    void handlerMayOverfillItsOwnMailbox() {
+        final List<Long> handled = new ArrayList<>();
+        final MorseMailbox[] mailbox = new MorseMailbox[1];
+
+        // Message 0 posts 1 to 100 at once, far more than fit; each of those posts its
+        // successor in the thousands, so spilled and queued messages interleave
+        mailbox[0] = new MorseMailbox(8, new MorseMailbox.Handler() {
+            @Override
+            public void handle(long message) {
+                assertTrue(mailbox[0].isWriter());
+                handled.add(message);
+
+                if(message == 0) {
+                    for(long i = 1; i <= 100; i++) {
+                        mailbox[0].post(i);
+                    }
+                }
+                else if(message <= 100) {
+                    mailbox[0].post(message + 1000);
+                }
+            }
+        });
+
+        mailbox[0].post(0);
+
+        assertEquals(201, handled.size());
+        for(int i = 0; i <= 100; i++) {
+            assertEquals(i, (long) handled.get(i));
+        }
+        for(int i = 1; i <= 100; i++) {
+            assertEquals(i + 1000, (long) handled.get(100 + i));
+        }
+    }
+
+    @Test
+    void handlesEverythingFromManyThreads() throws InterruptedException {
+        final int threads = 4;
+        final int perThread = 50000;
+
+        // Each thread's messages must arrive in order, and the handler must never run twice at once
+        final long[] next = new long[threads];
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicBoolean failed = new AtomicBoolean();
+
+        final MorseMailbox mailbox = new MorseMailbox(16, new MorseMailbox.Handler() {
+            @Override
+            public void handle(long message) {
+                if(running.incrementAndGet() != 1) failed.set(true);
+
+                int thread = (int) (message >>> 32);
+                if((message & 0xffffffffL) != next[thread]++) failed.set(true);
+
+                running.decrementAndGet();
+            }
+        });
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> posters = new ArrayList<>();
+        for(int t = 0; t < threads; t++) {
+            final long id = t;
+            Thread poster = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch(InterruptedException e) {
+                        return;
+                    }
+
+                    for(long i = 0; i < perThread; i++) {
+                        mailbox.post(id << 32 | i);
+                    }
+                }
+            });
+            poster.start();
+            posters.add(poster);
+        }
+
+        start.countDown();
+        for(Thread poster : posters) {
+            poster.join();
+        }
+
+        // Every poster returned, so the last of them left nothing unhandled
+        assertFalse(failed.get());
+        for(int t = 0; t < threads; t++) {
+            assertEquals(perThread, next[t]);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.manywords.softworks.morse;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MorsePublisherTest {
+    private static final long TIMEOUT_MSEC = 5000;
+
+    private final ManualExecutor mExecutor = new ManualExecutor();
+    private final MorseMetrics mMetrics = new MorseMetrics();
+
+    private MorsePublisher publisher(int bufferSize, MorsePublisher.OverflowPolicy policy) {
+        MorsePublisher publisher = new MorsePublisher(mExecutor, bufferSize, policy);
+        publisher.setMetrics(mMetrics);
+        return publisher;
+    }
+
+    private RecordingSubscriber subscribe(MorsePublisher publisher) {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        mExecutor.runAll();
+        assertNotNull(subscriber.subscription);
+        return subscriber;
+    }
+
+    private static void send(MorsePublisher publisher, String text) {
+        for(char c : text.toCharArray()) {
+            publisher.morseReceived(c == ' ' ? MorseCharacter.SPACE : new MorseCharacter(Character.toString(c)));
+        }
+    }
+
+    /**
+     * Offer a character on another thread, returning once it is waiting for room.
+     */
+    private static Thread sendBlocked(final MorsePublisher publisher, final String c) throws InterruptedException {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                send(publisher, c);
+            }
+        });
+        thread.start();
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MSEC;
+        while(thread.getState() != Thread.State.WAITING) {
+            assertTrue(thread.isAlive(), "Sender finished without waiting");
+            assertTrue(System.currentTimeMillis() < deadline, "Sender never waited");
+            Thread.sleep(1);
+        }
+        return thread;
+    }
+
+    private static void finish(Thread thread) throws InterruptedException {
+        thread.join(TIMEOUT_MSEC);
+        assertFalse(thread.isAlive(), "Sender is still waiting");
+    }
+
+    @Test
+    void requestBoundsDelivery() {
+        MorsePublisher publisher = publisher(16, MorsePublisher.OverflowPolicy.DROP_OLDEST);
+        RecordingSubscriber subscriber = subscribe(publisher);
+
+        send(publisher, "PARIS");
+        mExecutor.runAll();
+        assertEquals("", subscriber.text());
+
+        subscriber.subscription.request(2);
+        mExecutor.runAll();
+        assertEquals("PA", subscriber.text());
+
+        subscriber.subscription.request(10);
+        mExecutor.runAll();
+        assertEquals("PARIS", subscriber.text());
+
+        send(publisher, "CQ");
+        mExecutor.runAll();
+        assertEquals("PARISCQ", subscriber.text());
+    }
+
+    @Test
+    void nonPositiveRequestFails() {
+        MorsePublisher publisher = publisher(16, MorsePublisher.OverflowPolicy.DROP_OLDEST);
+        RecordingSubscriber subscriber = subscribe(publisher);
+
+        send(publisher, "AB");
+        subscriber.subscription.request(0);
+        mExecutor.runAll();
+
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        assertFalse(subscriber.completed);
+
+        send(publisher, "C");
+        subscriber.subscription.request(5);
+        mExecutor.runAll();
+        assertEquals("", subscriber.text());
+    }
+
+    @Test
+    void closeDeliversBufferedCharactersFirst() {
+        MorsePublisher publisher = publisher(16, MorsePublisher.OverflowPolicy.DROP_OLDEST);
+        RecordingSubscriber subscriber = subscribe(publisher);
+
+        send(publisher, "73");
+        publisher.close();
+        send(publisher, "SK");
+        mExecutor.runAll();
+        assertFalse(subscriber.completed);
+
+        subscriber.subscription.request(1);
+        mExecutor.runAll();
+        assertEquals("7", subscriber.text());
+        assertFalse(subscriber.completed);
+
+        subscriber.subscription.request(1);
+        mExecutor.runAll();
+        assertEquals("73", subscriber.text());
+        assertTrue(subscriber.completed);
+        assertNull(subscriber.error);
+    }
+
+    @Test
+    void lateSubscriberIsCompletedAtOnce() {
+        MorsePublisher publisher = publisher(16, MorsePublisher.OverflowPolicy.DROP_OLDEST);
+        publisher.close();
+
+        RecordingSubscriber subscriber = subscribe(publisher);
+        assertTrue(subscriber.completed);
+    }
+
+    @Test
+    void dropOldestKeepsNewest() {
+        MorsePublisher publisher = publisher(3, MorsePublisher.OverflowPolicy.DROP_OLDEST);
+        RecordingSubscriber subscriber = subscribe(publisher);
+
+        send(publisher, "PARIS");
+        subscriber.subscription.request(Long.MAX_VALUE);
+        mExecutor.runAll();
+
+        assertEquals("RIS", subscriber.text());
+        assertEquals(2, publisher.getDroppedCount());
+        assertEquals(2, mMetrics.getCharactersDropped());
+    }
+
+    @Test
+    void coalesceMergesWhitespaceBeforeDropping() {
+        MorsePublisher publisher = publisher(3, MorsePublisher.OverflowPolicy.COALESCE_WHITESPACE);
+        RecordingSubscriber subscriber = subscribe(publisher);
+
+        // A full buffer of "A  " takes B by merging its spaces
+        send(publisher, "A  B");
+        subscriber.subscription.request(Long.MAX_VALUE);
+        mExecutor.runAll();
+        assertEquals("A B", subscriber.text());
+        assertEquals(0, publisher.getDroppedCount());
+    }
+
+    @Test
+    void coalesceKeepsStrongestWhitespace() {
+        MorsePublisher publisher = publisher(3, MorsePublisher.OverflowPolicy.COALESCE_WHITESPACE);
+        RecordingSubscriber subscriber = subscribe(publisher);
+
+        send(publisher, "AB ");
+        publisher.morseReceived(MorseCharacter.PARAGRAPH);
+        publisher.morseReceived(MorseCharacter.SPACE);
+        subscriber.subscription.request(Long.MAX_VALUE);
+        mExecutor.runAll();
+
+        assertEquals("AB<PARAGRAPH>", subscriber.text());
+        assertEquals(0, publisher.getDroppedCount());
+    }
+
+    @Test
+    void coalesceDropsOldestWithoutWhitespace() {
+        MorsePublisher publisher = publisher(3, MorsePublisher.OverflowPolicy.COALESCE_WHITESPACE);
+        RecordingSubscriber subscriber = subscribe(publisher);
+
+        send(publisher, "CQDX");
+        subscriber.subscription.request(Long.MAX_VALUE);
+        mExecutor.runAll();
+
+        assertEquals("QDX", subscriber.text());
+        assertEquals(1, publisher.getDroppedCount());
+    }
+
+    @Test
+    void blockWaitsForRoom() throws InterruptedException {
+        MorsePublisher publisher = publisher(1, MorsePublisher.OverflowPolicy.BLOCK);
+        RecordingSubscriber subscriber = subscribe(publisher);
+
+        send(publisher, "A");
+        Thread sender = sendBlocked(publisher, "B");
+
+        subscriber.subscription.request(1);
+        mExecutor.runAll();
+        finish(sender);
+        assertEquals("A", subscriber.text());
+
+        subscriber.subscription.request(1);
+        mExecutor.runAll();
+        assertEquals("AB", subscriber.text());
+        assertEquals(0, publisher.getDroppedCount());
+    }
+
+    @Test
+    void cancelReleasesBlockedSender() throws InterruptedException {
+        MorsePublisher publisher = publisher(1, MorsePublisher.OverflowPolicy.BLOCK);
+        RecordingSubscriber subscriber = subscribe(publisher);
+
+        send(publisher, "A");
+        Thread sender = sendBlocked(publisher, "B");
+
+        subscriber.subscription.cancel();
+        finish(sender);
+
+        subscriber.subscription.request(5);
+        mExecutor.runAll();
+        assertEquals("", subscriber.text());
+        assertEquals(0, publisher.getSubscriberCount());
+        assertFalse(subscriber.completed);
+    }
+
+    @Test
+    void closeReleasesBlockedSenderAndCountsDrop() throws InterruptedException {
+        MorsePublisher publisher = publisher(1, MorsePublisher.OverflowPolicy.BLOCK);
+        RecordingSubscriber subscriber = subscribe(publisher);
+
+        send(publisher, "A");
+        Thread sender = sendBlocked(publisher, "B");
+
+        publisher.close();
+        finish(sender);
+        assertEquals(1, publisher.getDroppedCount());
+
+        subscriber.subscription.request(5);
+        mExecutor.runAll();
+        assertEquals("A", subscriber.text());
+        assertTrue(subscriber.completed);
+    }
+
+    @Test
+    void throwingSubscriberIsCancelled() {
+        MorsePublisher publisher = publisher(16, MorsePublisher.OverflowPolicy.DROP_OLDEST);
+        RecordingSubscriber subscriber = new RecordingSubscriber() {
+            @Override
+            public void onNext(MorseCharacter item) {
+                super.onNext(item);
+                throw new IllegalStateException("Subscriber failed");
+            }
+        };
+        publisher.subscribe(subscriber);
+        mExecutor.runAll();
+
+        send(publisher, "AB");
+        subscriber.subscription.request(5);
+        mExecutor.runAll();
+
+        assertEquals("A", subscriber.text());
+        assertTrue(subscriber.error instanceof IllegalStateException);
+        assertEquals(0, publisher.getSubscriberCount());
+    }
+}
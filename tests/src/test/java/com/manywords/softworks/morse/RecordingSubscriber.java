@@ -0,0 +1,46 @@
+package com.manywords.softworks.morse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Flow;
+
+/**
+ * A subscriber which requests nothing by itself, and records what it is sent.
+ */
+class RecordingSubscriber implements Flow.Subscriber<MorseCharacter> {
+    final List<MorseCharacter> received = Collections.synchronizedList(new ArrayList<MorseCharacter>());
+    volatile Flow.Subscription subscription;
+    volatile Throwable error;
+    volatile boolean completed;
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+    }
+
+    @Override
+    public void onNext(MorseCharacter item) {
+        received.add(item);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        error = throwable;
+    }
+
+    @Override
+    public void onComplete() {
+        completed = true;
+    }
+
+    String text() {
+        StringBuilder text = new StringBuilder();
+        synchronized(received) {
+            for(MorseCharacter c : received) {
+                text.append(c.character != null ? c.character : "<" + c.prosign + ">");
+            }
+        }
+        return text.toString();
+    }
+}